@@ -6,6 +6,11 @@ public class Config {
 
     public static final int SERVER_PORT;
     public static final String SERVER_ADDRESS;
+    public static final int OUTGOING_QUEUE_CAPACITY;
+    public static final int INBOX_PAGE_SIZE;
+    public static final boolean BINARY_CODEC;
+    public static final boolean COMPRESSION;
+    public static final int COMPRESSION_MIN_BYTES;
 
     static {
         Dotenv dotenv = Dotenv.configure()
@@ -14,6 +19,14 @@ public class Config {
 
         SERVER_PORT = Integer.parseInt(dotenv.get("SERVER_PORT", "25565"));
         SERVER_ADDRESS = dotenv.get("SERVER_ADDRESS", "localhost");
+        OUTGOING_QUEUE_CAPACITY = Integer.parseInt(dotenv.get("OUTGOING_QUEUE_CAPACITY", "1024"));
+        // mail chieste al server per ogni pagina dell'inbox
+        INBOX_PAGE_SIZE = Integer.parseInt(dotenv.get("INBOX_PAGE_SIZE", "50"));
+        // chiede al server la codifica binaria all'avvio della connessione
+        BINARY_CODEC = Boolean.parseBoolean(dotenv.get("BINARY_CODEC", "true"));
+        // chiede la compressione Deflate; i messaggi sotto la soglia partono comunque in chiaro
+        COMPRESSION = Boolean.parseBoolean(dotenv.get("COMPRESSION", "true"));
+        COMPRESSION_MIN_BYTES = Integer.parseInt(dotenv.get("COMPRESSION_MIN_BYTES", "1024"));
     }
 
 
@@ -1,16 +1,20 @@
 package uni.proj.controller;
 
 import javafx.application.Platform;
+import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.fxml.Initializable;
+import javafx.geometry.Orientation;
 import javafx.scene.Cursor;
+import javafx.scene.Node;
 import javafx.scene.Parent;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollBar;
 import javafx.scene.control.TextField;
 import javafx.scene.input.KeyCode;
 import javafx.scene.layout.FlowPane;
@@ -20,6 +24,7 @@ import javafx.scene.paint.Color;
 import javafx.scene.shape.Circle;
 import uni.proj.model.Client;
 import uni.proj.model.ClientListener;
+import uni.proj.model.protocol.ProtocolMessage;
 import uni.proj.model.protocol.data.ErrorData;
 import uni.proj.model.protocol.data.ResponseData;
 import uni.proj.model.protocol.data.SendMailData;
@@ -50,6 +55,8 @@ public class ClientController implements Initializable, ClientListener {
     Client client;
     private final Set<String> emailSet = new HashSet<>();
     private ObservableList<SendMailData> mails;
+    // barra verticale della lista, nota quando la lista ha la sua skin
+    private ScrollBar mailScrollBar;
 
     @Override
     public void initialize(URL url, ResourceBundle resourceBundle) {
@@ -58,6 +65,7 @@ public class ClientController implements Initializable, ClientListener {
         mails = client.getMails();
         mailList.setCellFactory(list -> new MailItemCell(this));
         mailList.setItems(mails);
+        loadMoreOnScroll();
         emailInput.setOnKeyPressed(event -> {
             if (event.getCode() == KeyCode.ENTER) {
                 String email = emailInput.getText().trim();
@@ -84,12 +92,12 @@ public class ClientController implements Initializable, ClientListener {
     }
 
     @Override
-    public void onError(ErrorData error) {
+    public void onError(ProtocolMessage<?> request, ErrorData error) {
 
     }
 
     @Override
-    public void onResponse(ResponseData response) {
+    public void onResponse(ProtocolMessage<?> request, ResponseData response) {
         Platform.runLater(() -> {
             switch (response.responseTo()) {
                 case LOGIN -> {
@@ -99,7 +107,7 @@ public class ClientController implements Initializable, ClientListener {
                     logout.setManaged(true);
                     main.setVisible(true);
                     main.setManaged(true);
-                    client.execute("/getinbox");
+                    client.execute("/sync");
                 }
                 case LOGOUT -> {
                     if(client.getListeners().size() > 1) {
@@ -121,6 +129,32 @@ public class ClientController implements Initializable, ClientListener {
         });
     }
 
+    // Vicino al fondo della lista si chiede la pagina successiva dell'inbox
+    private void loadMoreOnScroll() {
+        mailList.skinProperty().addListener((obs, oldSkin, newSkin) -> {
+            for (Node node : mailList.lookupAll(".scroll-bar")) {
+                if (node instanceof ScrollBar bar && bar.getOrientation() == Orientation.VERTICAL) {
+                    mailScrollBar = bar;
+                    bar.valueProperty().addListener((o, oldValue, value) -> {
+                        if (value.doubleValue() >= bar.getMax() * 0.9)
+                            client.loadMoreInbox();
+                    });
+                }
+            }
+        });
+        // una pagina che non riempie la lista non fa comparire la barra e non ci sara' mai uno scroll:
+        // dopo ogni aggiornamento, a layout fatto, si chiede subito la pagina successiva
+        mails.addListener((ListChangeListener<SendMailData>) change -> Platform.runLater(this::loadMoreIfFits));
+    }
+
+    private void loadMoreIfFits() {
+        if (mailScrollBar == null)
+            return;
+        mailList.layout();
+        if (!mailScrollBar.isVisible())
+            client.loadMoreInbox();
+    }
+
     private void bindStateIndicator() {
         // Listener per lo stato
         client.getStateProperty().addListener((obs, oldState, newState) -> {
@@ -10,6 +10,8 @@ import javafx.scene.layout.FlowPane;
 import uni.proj.model.Client;
 import uni.proj.model.ClientListener;
 import uni.proj.model.protocol.MessageType;
+import uni.proj.model.protocol.ProtocolMessage;
+import uni.proj.model.protocol.data.DeleteData;
 import uni.proj.model.protocol.data.ErrorData;
 import uni.proj.model.protocol.data.ResponseData;
 import uni.proj.model.protocol.data.SendMailData;
@@ -32,6 +34,8 @@ public class MailDetailController implements ClientListener {
     @FXML private TextArea bodyArea;
 
     private SendMailData data;
+    // id della mail nell'archivio del server, 0 se sconosciuto
+    private long id;
     private ClientController inboxController;
     private final Set<String> emailSet = new HashSet<>();
     private Client client;
@@ -42,6 +46,7 @@ public class MailDetailController implements ClientListener {
         this.client = client;
         client.registerListener(this);
         this.data = data;
+        this.id = client.idOf(data);
         emailInput.setOnKeyPressed(event -> {
             if (event.getCode() == KeyCode.ENTER) {
                 String email = emailInput.getText().trim();
@@ -119,11 +124,7 @@ public class MailDetailController implements ClientListener {
 
     @FXML
     private void onDelete() {
-        String command = "/delete " + client.getLoggedMail() + " \"" + escapeQuotes(data.title()) + "\" \"" + escapeQuotes(data.body()) + "\"";
-        for(String receiver : data.receiversEmail()) {
-            command += " " + receiver;
-        }
-        client.execute(command);
+        client.delete(data);
     }
 
     @FXML
@@ -164,18 +165,24 @@ public class MailDetailController implements ClientListener {
     }
 
     @Override
-    public void onResponse(ResponseData response) {
+    public void onResponse(ProtocolMessage<?> request, ResponseData response) {
+        // con piu' cancellazioni in volo si reagisce solo alla risposta di quella di questa mail
+        if (request != null && !(request.data() instanceof DeleteData delete && (id != 0 ? delete.id() == id : delete.mail().equals(data))))
+            return;
         Platform.runLater(() -> {
-            if (response.responseTo().equals(MessageType.DELETE)) {
+            if (response.responseTo() == MessageType.DELETE) {
                 System.out.println("eseguo delete");
-                client.getMails().remove(data);
+                if (id != 0)
+                    client.removeMail(id);
+                else
+                    client.getMails().remove(data);
                 onBack();
             }
         });
     }
 
     @Override
-    public void onError(ErrorData error) {
+    public void onError(ProtocolMessage<?> request, ErrorData error) {
 
     }
 }
@@ -4,19 +4,35 @@ import javafx.application.Platform;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 import uni.proj.Config;
+import uni.proj.model.protocol.FrameDeflater;
+import uni.proj.model.protocol.Handshake;
 import uni.proj.model.protocol.MessageType;
 import uni.proj.model.protocol.ProtocolHandler;
 import uni.proj.model.protocol.ProtocolMessage;
+import uni.proj.model.protocol.WireReader;
 import uni.proj.model.protocol.data.*;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -34,20 +50,57 @@ public class Client implements Runnable {
 
     private Socket socket;
     private List<ClientListener> listeners = new ArrayList<>();
-    private BufferedReader in;
-    private PrintWriter out;
-    private final BlockingQueue<String> outgoingMessages = new LinkedBlockingQueue<>();
+    private WireReader in;
+    private OutputStream out;
+    // sblocca il take() del ciclo di scrittura in stop()
+    private static final ProtocolMessage<?> WAKE_UP = new ProtocolMessage<>(null, null);
+    private final BlockingQueue<ProtocolMessage<?>> outgoingMessages = new LinkedBlockingQueue<>(Config.OUTGOING_QUEUE_CAPACITY);
+    // codifica binaria accettata dal server nell'handshake: da quel momento si scrive in binario
+    private volatile boolean binary = false;
+    // compressione accettata dal server: i messaggi grandi (es. mail lunghe) partono compressi
+    private volatile FrameDeflater deflater = null;
     private final ProtocolHandler protocolHandler;
+    // Richieste inviate in attesa di risposta, per requestId: il server puo' rispondere fuori ordine
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final ConcurrentHashMap<Long, ProtocolMessage<?>> pendingRequests = new ConcurrentHashMap<>();
     private Thread readerThread;
     private String loggedMail = null;
     private final ObjectProperty<State> stateProperty = new SimpleObjectProperty<>(State.OFFLINE);
 
     private final ObservableList<SendMailData> mails = FXCollections.observableArrayList();
+    // risultati dell'ultima ricerca (/search), dal piu' recente
+    private final ObservableList<SendMailData> searchResults = FXCollections.observableArrayList();
+
+    // Mail ricevuta con il suo id nell'archivio del server (0 se non indicato)
+    private record Received(long id, SendMailData mail) {}
+
+    // id delle mail in lista, per identita': mail distinte possono avere lo stesso contenuto e la copia
+    // in lista puo' essere precedente a un forward. Usata solo dal thread JavaFX, segue le rimozioni da mails
+    private final Map<SendMailData, Long> mailIds = new IdentityHashMap<>();
+
+    // Paginazione dell'inbox: i MAIL_BATCH della risposta arrivati mentre una pagina e' in corso ne fanno parte
+    // e vengono aggiunti in blocco all'arrivo di INBOX_PAGE. Le mail nuove (MAIL_BATCH senza requestId) invece
+    // vanno subito in cima e si ricordano in pushedWhileLoading, cosi' la prima pagina non le cancella.
+    // Usate solo dal thread di lettura
+    private final AtomicBoolean inboxPageLoading = new AtomicBoolean(false);
+    private final List<Received> pendingPage = new ArrayList<>();
+    private final List<Received> pushedWhileLoading = new ArrayList<>();
+    private volatile boolean firstPage = false;
+    private volatile String inboxCursor = null;
+    // Sequenza della mailbox fino a cui la lista e' aggiornata (-1: mai caricata), per chiedere solo le modifiche
+    private volatile long inboxSequence = -1;
+    private volatile String syncedMail = null;
 
     private volatile boolean running = true;
 
     public Client() {
         protocolHandler = new ProtocolHandler();
+        mails.addListener((ListChangeListener<SendMailData>) change -> {
+            while (change.next()) {
+                for (SendMailData removed : change.getRemoved())
+                    mailIds.remove(removed);
+            }
+        });
         setState(State.INITIALIZED);
     }
 
@@ -68,13 +121,19 @@ public class Client implements Runnable {
                 setState(State.STARTED);
                 System.out.println("Connesso al server.");
 
-                // Scrittura
+                // Scrittura: il flush avviene quando la coda si svuota
                 while (running && !socket.isClosed()) {
                     try {
-                        String msg = outgoingMessages.take();
-                        if(msg.isEmpty())
-                            System.out.println("messaggio vuoto");
-                        out.println(msg);
+                        ProtocolMessage<?> msg = outgoingMessages.take();
+                        if (msg == WAKE_UP)
+                            continue;
+                        byte[] bytes = encode(msg);
+                        FrameDeflater compressor = deflater;
+                        out.write(compressor != null && bytes.length >= Config.COMPRESSION_MIN_BYTES ? compressor.compress(bytes) : bytes);
+                        if (outgoingMessages.isEmpty())
+                            out.flush();
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("messaggio non codificabile, scartato: " + e.getMessage());
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                         break;
@@ -102,8 +161,21 @@ public class Client implements Runnable {
 
     private void connect() throws IOException {
         socket = new Socket(Config.SERVER_ADDRESS, Config.SERVER_PORT);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(socket.getOutputStream(), true);
+        in = new WireReader(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+        binary = false;
+        deflater = null;
+        // si chiedono codifica binaria e compressione; finche' il server non risponde si parla JSON in chiaro
+        // (un server che non conosce l'handshake scarta la riga e si resta in JSON)
+        Set<String> features = new LinkedHashSet<>();
+        if (Config.BINARY_CODEC)
+            features.add(Handshake.BINARY);
+        if (Config.COMPRESSION)
+            features.add(Handshake.DEFLATE);
+        if (!features.isEmpty()) {
+            out.write((Handshake.line(features) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
 
         // Thread di lettura
         readerThread = new Thread(this::readMessages);
@@ -113,9 +185,22 @@ public class Client implements Runnable {
 
     private void readMessages() {
         try {
-            String line;
-            while (running && (line = in.readLine()) != null) {
-                handleMessage(protocolHandler.decode(line));
+            WireReader.Frame frame;
+            while (running && (frame = in.next()) != null) {
+                if (frame.binary() != null) {
+                    try {
+                        handleMessage(protocolHandler.decodeBinary(frame.binary()));
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("Frame binario malformato: " + e.getMessage());
+                    }
+                    continue;
+                }
+                Set<String> accepted = Handshake.parse(frame.line());
+                if (accepted != null) {
+                    binary = accepted.contains(Handshake.BINARY);
+                    deflater = accepted.contains(Handshake.DEFLATE) ? new FrameDeflater() : null;
+                } else
+                    handleMessage(protocolHandler.decode(frame.line()));
             }
         } catch (IOException e) {
             System.err.println("Errore durante la lettura: " + e.getMessage());
@@ -131,8 +216,9 @@ public class Client implements Runnable {
                 System.out.println("messaggio dal server: "+data.message());
             }
             case RESPONSE -> {
+                ProtocolMessage<?> request = completed(message);
                 for(ClientListener listener : listeners)
-                    listener.onResponse((ResponseData) message.data());
+                    listener.onResponse(request, (ResponseData) message.data());
                 ResponseData data = (ResponseData) message.data();
                 switch (data.responseTo()) {
                     case LOGIN -> setState(State.LOGGED);
@@ -140,7 +226,7 @@ public class Client implements Runnable {
                         setState(State.STARTED);
                         loggedMail = null;
                     }
-                    case SEND_MAIL -> {
+                    case SEND_MAIL, FORWARD -> {
                         System.out.println(data.message());
                     }
                     case CHAT, ERROR, RESPONSE, REGISTER, DELETE -> {
@@ -155,9 +241,16 @@ public class Client implements Runnable {
                 }
             }
             case ERROR -> {
+                ProtocolMessage<?> request = completed(message);
                 for(ClientListener listener : listeners)
-                    listener.onError((ErrorData) message.data());
+                    listener.onError(request, (ErrorData) message.data());
                 ErrorData data = (ErrorData) message.data();
+                MessageType failed = request != null ? request.type() : data.errorTo();
+                if (failed == MessageType.GET_INBOX || failed == MessageType.GET_CHANGES) {
+                    pendingPage.clear();
+                    pushedWhileLoading.clear();
+                    inboxPageLoading.set(false);
+                }
                 switch (data.errorTo()) {
                     case LOGOUT, GET_INBOX, CHAT, DELETE, FORWARD, ERROR, RESPONSE, REGISTER, SEND_MAIL -> {
                         System.out.println(data.message());
@@ -175,14 +268,98 @@ public class Client implements Runnable {
                 }
             }
             case SEND_MAIL -> {
+                // mail senza id (server precedente ai MAIL_BATCH)
                 SendMailData data = (SendMailData) message.data();
-                System.out.println("Titolo: "+data.title());
-                System.out.println("mittente: "+ data.senderEmail());
-                System.out.println(data.body());
-                System.out.println("destinatari: " + Arrays.toString(data.receiversEmail()));
-                System.out.flush();
-
-                Platform.runLater(() -> mails.add(data));
+                printMail(data);
+                Received received = new Received(0, data);
+                if (inboxPageLoading.get())
+                    pushedWhileLoading.add(received);
+                Platform.runLater(() -> insertMails(0, List.of(received)));  // le piu' recenti in cima
+            }
+            case MAIL_BATCH -> {
+                MailBatchData data = (MailBatchData) message.data();
+                List<Received> received = new ArrayList<>(data.mails().length);
+                for (int i = 0; i < data.mails().length; i++)
+                    received.add(new Received(data.ids() != null && i < data.ids().length ? data.ids()[i] : 0, data.mails()[i]));
+                if (message.requestId() == 0) {
+                    // mail nuove: non fanno parte della pagina o delle modifiche in arrivo, vanno in cima in ogni caso
+                    for (SendMailData mail : data.mails())
+                        printMail(mail);
+                    if (inboxPageLoading.get())
+                        pushedWhileLoading.addAll(received);
+                    Collections.reverse(received);
+                    Platform.runLater(() -> insertMails(0, received));
+                } else if (inboxPageLoading.get()) {
+                    pendingPage.addAll(received);
+                } else {
+                    // inbox completa (GET_INBOX senza pagine) dalla piu' vecchia: le piu' recenti in cima
+                    System.out.println("ricevute " + received.size() + " mail");
+                    Collections.reverse(received);
+                    Platform.runLater(() -> insertMails(0, received));
+                }
+            }
+            case INBOX_PAGE -> {
+                completed(message);
+                InboxPageData data = (InboxPageData) message.data();
+                List<Received> page = new ArrayList<>(pendingPage);
+                List<Received> pushed = new ArrayList<>(pushedWhileLoading);
+                boolean replace = firstPage;
+                pendingPage.clear();
+                pushedWhileLoading.clear();
+                inboxCursor = data.nextCursor();
+                if (replace) {
+                    inboxSequence = data.sequence();
+                    syncedMail = loggedMail;
+                }
+                inboxPageLoading.set(false);
+                Platform.runLater(() -> {
+                    if (replace) {
+                        mails.clear();
+                        insertMails(0, page);
+                        // arrivate dopo la lettura della pagina sul server: restano in cima
+                        Collections.reverse(pushed);
+                        insertMails(0, pushed);
+                    } else {
+                        // se nel frattempo sono state cancellate mail il server puo' rimandarne qualcuna
+                        insertMails(mails.size(), page);
+                    }
+                });
+            }
+            case CHANGES -> {
+                completed(message);
+                ChangesData data = (ChangesData) message.data();
+                List<Received> added = new ArrayList<>(pendingPage);
+                int pushed = pushedWhileLoading.size();
+                pendingPage.clear();
+                pushedWhileLoading.clear();
+                inboxPageLoading.set(false);
+                if (!data.complete()) {
+                    // il server non ha piu' le modifiche richieste: si ricarica l'inbox
+                    execute("/getinbox");
+                    return;
+                }
+                inboxSequence = data.sequence();
+                // arrivano dalla piu' vecchia: le piu' recenti in cima
+                Collections.reverse(added);
+                // quelle ricevute quando si era online ci sono gia'; vanno sotto quelle arrivate durante la richiesta,
+                // che sono piu' recenti
+                Platform.runLater(() -> insertMails(pushed, added));
+            }
+            case SEARCH_RESULT -> {
+                completed(message);
+                SearchResultData data = (SearchResultData) message.data();
+                System.out.println("risultati della ricerca: " + data.mails().length + (data.truncated() ? " (troncati)" : ""));
+                for (SendMailData mail : data.mails())
+                    System.out.println(mail);
+                Platform.runLater(() -> searchResults.setAll(data.mails()));
+            }
+            case DELETE -> {
+                DeleteData data = (DeleteData) message.data();
+                // dall'id: la copia in lista puo' non essere piu' uguale a quella del server (es. dopo un forward)
+                if (data.id() != 0)
+                    Platform.runLater(() -> removeMail(data.id()));
+                else
+                    Platform.runLater(() -> mails.remove(data.mail()));
             }
             case FORWARD -> {
                 ForwardData data = (ForwardData) message.data();
@@ -202,10 +379,80 @@ public class Client implements Runnable {
         }
     }
 
+    private static void printMail(SendMailData mail) {
+        System.out.println("Titolo: "+mail.title());
+        System.out.println("mittente: "+ mail.senderEmail());
+        System.out.println(mail.body());
+        System.out.println("destinatari: " + Arrays.toString(mail.receiversEmail()));
+        System.out.flush();
+    }
+
+    // Dal thread JavaFX: inserisce le mail dalla posizione index, saltando quelle con un id gia' in lista
+    private void insertMails(int index, List<Received> received) {
+        Set<Long> present = new HashSet<>(mailIds.values());
+        List<Received> fresh = received.stream().filter(mail -> mail.id() == 0 || present.add(mail.id())).toList();
+        mails.addAll(Math.min(index, mails.size()), fresh.stream().map(Received::mail).toList());
+        for (Received mail : fresh) {
+            if (mail.id() != 0)
+                mailIds.put(mail.mail(), mail.id());
+        }
+    }
+
+    // Dal thread JavaFX: id nell'archivio del server della mail in lista (per identita'), 0 se sconosciuto
+    public long idOf(SendMailData mail) {
+        return mailIds.getOrDefault(mail, 0L);
+    }
+
+    // Dal thread JavaFX: cancellazione di una mail della lista. Con l'id il server cancella proprio quella,
+    // non la prima con lo stesso contenuto
+    public boolean delete(SendMailData mail) {
+        if (loggedMail == null) {
+            System.out.println("comando non valido, devi essere loggato");
+            return false;
+        }
+        send(new ProtocolMessage<>(MessageType.DELETE, new DeleteData(mail, idOf(mail))));
+        return true;
+    }
+
+    // Dal thread JavaFX: toglie dalla lista la mail con questo id
+    public void removeMail(long id) {
+        for (int i = 0; i < mails.size(); i++) {
+            Long mailId = mailIds.get(mails.get(i));
+            if (mailId != null && mailId == id) {
+                mails.remove(i);
+                return;
+            }
+        }
+    }
+
     public synchronized void send(ProtocolMessage<?> message) {
-        Class<?> dataClass = protocolHandler.getDataClassForType(message.type());
+        // ogni richiesta riceve un requestId con cui il server ne marca la risposta
+        if (message.requestId() == 0 && expectsReply(message.type())) {
+            message = new ProtocolMessage<>(message.type(), message.data(), nextRequestId.incrementAndGet());
+            pendingRequests.put(message.requestId(), message);
+        }
+        // coda limitata: se il server non legge piu' non si accumulano messaggi all'infinito
+        if (!outgoingMessages.offer(message)) {
+            System.out.println("coda in uscita piena, messaggio scartato: " + message.type());
+            pendingRequests.remove(message.requestId());
+        }
+    }
+
+    private static boolean expectsReply(MessageType type) {
+        return type != MessageType.CHAT && type != MessageType.RESPONSE && type != MessageType.ERROR;
+    }
 
-       outgoingMessages.offer(protocolHandler.encode(message, dataClass));
+    // Richiesta a cui il messaggio risponde, null se il server non l'ha indicata (o non la conosce)
+    private ProtocolMessage<?> completed(ProtocolMessage<?> message) {
+        return message.requestId() == 0 ? null : pendingRequests.remove(message.requestId());
+    }
+
+    // Riga JSON o frame binario a seconda di quanto negoziato
+    private byte[] encode(ProtocolMessage<?> message) {
+        if (binary)
+            return protocolHandler.encodeBinary(message);
+        Class<?> dataClass = protocolHandler.getDataClassForType(message.type());
+        return (protocolHandler.encode(message, dataClass) + "\n").getBytes(StandardCharsets.UTF_8);
     }
 
     public boolean execute(String query) {
@@ -285,7 +532,59 @@ public class Client implements Runnable {
                         System.out.println("comando non valido, devi essere loggato");
                        return false;
                     }
-                    send(new ProtocolMessage<>(MessageType.GET_INBOX, new GetInboxData(loggedMail)));
+                    // prima pagina: sostituisce la lista attuale, le successive arrivano con loadMoreInbox
+                    firstPage = true;
+                    inboxPageLoading.set(true);
+                    send(new ProtocolMessage<>(MessageType.GET_INBOX, new GetInboxData(loggedMail, null, Config.INBOX_PAGE_SIZE)));
+                    return true;
+                }
+                case "/sync" -> {
+                    if(loggedMail == null) {
+                        System.out.println("comando non valido, devi essere loggato");
+                        return false;
+                    }
+                    // stessa mailbox gia' caricata (es. dopo una riconnessione): bastano le modifiche
+                    long since = inboxSequence;
+                    if (since < 0 || !loggedMail.equals(syncedMail))
+                        return execute("/getinbox");
+                    firstPage = false;
+                    inboxPageLoading.set(true);
+                    send(new ProtocolMessage<>(MessageType.GET_CHANGES, new GetChangesData(loggedMail, since)));
+                    return true;
+                }
+                case "/search" -> {
+                    // /search [from <mittente>] [to <destinatario>] [title <testo>] [after <aaaa-mm-gg>] [before <aaaa-mm-gg>] [text <parole>]
+                    if(loggedMail == null) {
+                        System.out.println("comando non valido, devi essere loggato");
+                        return false;
+                    }
+                    if(commandQuery.size() % 2 == 0) {
+                        System.out.println("comando non valido, ogni filtro vuole un valore");
+                        return false;
+                    }
+                    String sender = null, recipient = null, title = null, text = null;
+                    Long from = null, to = null;
+                    try {
+                        for (int i = 1; i < commandQuery.size(); i += 2) {
+                            String value = commandQuery.get(i + 1);
+                            switch (commandQuery.get(i).toLowerCase()) {
+                                case "from" -> sender = value;
+                                case "to" -> recipient = value;
+                                case "title" -> title = value;
+                                case "text" -> text = value;
+                                case "after" -> from = LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                                case "before" -> to = LocalDate.parse(value).plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli() - 1;
+                                default -> {
+                                    System.out.println("filtro non valido: " + commandQuery.get(i));
+                                    return false;
+                                }
+                            }
+                        }
+                    } catch (DateTimeParseException e) {
+                        System.out.println("data non valida, usa il formato aaaa-mm-gg");
+                        return false;
+                    }
+                    send(new ProtocolMessage<>(MessageType.SEARCH, new SearchData(loggedMail, sender, recipient, title, from, to, text)));
                     return true;
                 }
                 case "/forward" -> {
@@ -347,17 +646,29 @@ public class Client implements Runnable {
         return true;
     }
 
+    // Chiede la pagina successiva dell'inbox; false se non ce ne sono altre o una e' gia' in arrivo
+    public boolean loadMoreInbox() {
+        String cursor = inboxCursor;
+        if (loggedMail == null || cursor == null || !inboxPageLoading.compareAndSet(false, true))
+            return false;
+        firstPage = false;
+        send(new ProtocolMessage<>(MessageType.GET_INBOX, new GetInboxData(loggedMail, cursor, Config.INBOX_PAGE_SIZE)));
+        return true;
+    }
+
     public void stop() {
         running = false;
         if (readerThread != null) readerThread.interrupt(); // interrompe il thread lettore se necessario
         Thread.currentThread().interrupt(); // interrompe anche questo thread se è in attesa
-        outgoingMessages.offer(""); // sblocca il take() nel caso non arrivi mai un messaggio
+        outgoingMessages.offer(WAKE_UP); // sblocca il take() nel caso non arrivi mai un messaggio
         closeResources();
         setState(State.OFFLINE);
         System.out.println("stop eseguito");
     }
 
     private void closeResources() {
+        // le richieste ancora in volo non avranno risposta su questa connessione
+        pendingRequests.clear();
         try {
             if (socket != null) socket.close();
             if (in != null) in.close();
@@ -416,6 +727,10 @@ public class Client implements Runnable {
         return mails;
     }
 
+    public ObservableList<SendMailData> getSearchResults() {
+        return searchResults;
+    }
+
     public String getLoggedMail() {
         return loggedMail;
     }
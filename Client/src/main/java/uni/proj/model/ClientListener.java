@@ -1,10 +1,12 @@
 package uni.proj.model;
 
+import uni.proj.model.protocol.ProtocolMessage;
 import uni.proj.model.protocol.data.ErrorData;
 import uni.proj.model.protocol.data.ResponseData;
 
 public interface ClientListener {
 
-    void onResponse(ResponseData response);
-    void onError(ErrorData error);
+    // request: la richiesta inviata a cui la risposta si riferisce, null se il server non ha indicato quale
+    void onResponse(ProtocolMessage<?> request, ResponseData response);
+    void onError(ProtocolMessage<?> request, ErrorData error);
 }
@@ -0,0 +1,55 @@
+package uni.proj.model.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+// Compressione Deflate in uscita su una connessione che ha negoziato "deflate" nell'handshake.
+// Un frame compresso e' [MARKER][lunghezza int big endian][dati deflate] e contiene uno o piu' messaggi
+// interi (righe o frame binari). Il Deflater resta aperto per tutta la connessione, cosi' il dizionario
+// copre anche i messaggi gia' inviati (destinatari e intestazioni ripetuti); ogni frame si chiude con
+// SYNC_FLUSH e chi lo riceve lo decomprime subito per intero. Non sincronizzato: lo usa solo chi scrive.
+public class FrameDeflater {
+
+    public static final byte MARKER = 1;
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private byte[] output = new byte[8192];
+    private int length;
+
+    // Comprime in un solo frame i byte rimanenti di buffers[offset, offset + count), senza consumarli
+    public byte[] compress(ByteBuffer[] buffers, int offset, int count) {
+        length = BinaryCodec.HEADER_BYTES;
+        for (int i = offset; i < offset + count; i++) {
+            deflater.setInput(buffers[i].duplicate());
+            while (!deflater.needsInput())
+                deflate(Deflater.NO_FLUSH);
+        }
+        // con SYNC_FLUSH l'output e' completo quando deflate non riempie lo spazio disponibile
+        while (deflate(Deflater.SYNC_FLUSH))
+            ;
+        int payload = length - BinaryCodec.HEADER_BYTES;
+        byte[] frame = Arrays.copyOf(output, length);
+        frame[0] = MARKER;
+        frame[1] = (byte) (payload >>> 24);
+        frame[2] = (byte) (payload >>> 16);
+        frame[3] = (byte) (payload >>> 8);
+        frame[4] = (byte) payload;
+        return frame;
+    }
+
+    public byte[] compress(byte[] bytes) {
+        return compress(new ByteBuffer[]{ByteBuffer.wrap(bytes)}, 0, 1);
+    }
+
+
+    // true se l'output ha riempito lo spazio libero (potrebbe esserci altro da estrarre)
+    private boolean deflate(int flush) {
+        if (output.length - length < 1024)
+            output = Arrays.copyOf(output, output.length * 2);
+        int free = output.length - length;
+        int written = deflater.deflate(output, length, free, flush);
+        length += written;
+        return written == free;
+    }
+}
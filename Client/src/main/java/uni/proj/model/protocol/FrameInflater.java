@@ -0,0 +1,43 @@
+package uni.proj.model.protocol;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Decompressione dei frame FrameDeflater ricevuti su una connessione: un solo Inflater per tutta la
+// connessione, nello stesso ordine in cui il mittente ha compresso. Non sincronizzato: lo usa solo chi legge.
+public class FrameInflater {
+
+    // limite ai byte decompressi da un frame, contro i frame costruiti per esplodere in memoria
+    public static final int MAX_INFLATED_LENGTH = 64 * 1024 * 1024;
+
+    private final Inflater inflater = new Inflater(true);
+
+    // Contenuto del frame (senza intestazione): righe e frame binari interi
+    public byte[] inflate(byte[] payload) throws IOException {
+        inflater.setInput(payload);
+        byte[] output = new byte[Math.max(1024, payload.length * 4)];
+        int length = 0;
+        try {
+            while (true) {
+                if (length == output.length) {
+                    if (output.length >= MAX_INFLATED_LENGTH)
+                        throw new IOException("frame compresso troppo grande");
+                    output = Arrays.copyOf(output, Math.min(output.length * 2, MAX_INFLATED_LENGTH));
+                }
+                int read = inflater.inflate(output, length, output.length - length);
+                length += read;
+                // spazio avanzato e input finito: il SYNC_FLUSH garantisce che non resti altro
+                if (length < output.length && (inflater.needsInput() || inflater.finished()))
+                    break;
+                if (read == 0 && inflater.needsDictionary())
+                    throw new IOException("frame compresso non valido");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("frame compresso non valido: " + e.getMessage(), e);
+        }
+        return Arrays.copyOf(output, length);
+    }
+
+}
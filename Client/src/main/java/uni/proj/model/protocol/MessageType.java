@@ -10,5 +10,11 @@ public enum MessageType {
     RESPONSE,
     GET_INBOX,
     FORWARD,
-    DELETE
+    DELETE,
+    INBOX_PAGE,
+    GET_CHANGES,
+    CHANGES,
+    SEARCH,
+    SEARCH_RESULT,
+    MAIL_BATCH
 }
@@ -0,0 +1,79 @@
+package uni.proj.model.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+// Lettura bloccante di uno stream che puo' alternare righe di testo (JSON, handshake), frame binari e
+// frame compressi; il contenuto di un frame compresso viene restituito un messaggio alla volta
+public class WireReader {
+
+    // Esattamente uno dei due campi e' valorizzato
+    public record Frame(String line, byte[] binary) {}
+
+    private static final int MAX_LINE_LENGTH = 16 * 1024 * 1024;
+
+    private final DataInputStream in;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(1024);
+    private FrameInflater inflater;
+    // messaggi del frame compresso in corso
+    private WireReader inflated;
+
+    public WireReader(InputStream in) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+    }
+
+    // Prossimo frame, null a fine stream
+    public Frame next() throws IOException {
+        if (inflated != null) {
+            Frame frame = inflated.next();
+            if (frame != null)
+                return frame;
+            inflated = null;
+        }
+        int first = in.read();
+        if (first < 0)
+            return null;
+        if (first == BinaryCodec.MARKER)
+            return new Frame(null, readPayload());
+        if (first == FrameDeflater.MARKER) {
+            if (inflater == null)
+                inflater = new FrameInflater();
+            inflated = new WireReader(new ByteArrayInputStream(inflater.inflate(readPayload())));
+            return next();
+        }
+        line.reset();
+        int b = first;
+        while (b != '\n') {
+            if (line.size() >= MAX_LINE_LENGTH)
+                throw new IOException("riga troppo lunga, connessione chiusa");
+            line.write(b);
+            b = in.read();
+            if (b < 0)
+                throw new EOFException("connessione chiusa a meta' riga");
+        }
+        int end = line.size();
+        byte[] bytes = line.toByteArray();
+        if (end > 0 && bytes[end - 1] == '\r')
+            end--;
+        return new Frame(new String(bytes, 0, end, StandardCharsets.UTF_8), null);
+    }
+
+    private byte[] readPayload() throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > BinaryCodec.MAX_FRAME_LENGTH)
+            throw new IOException("frame di lunghezza non valida: " + length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,6 @@
+package uni.proj.model.protocol.data;
+
+// Chiude la risposta a GET_CHANGES: prima arrivano le mail nuove (MAIL_BATCH) e quelle cancellate (DELETE).
+// complete false: le modifiche non sono disponibili e il client deve ricaricare l'inbox con GET_INBOX
+public record ChangesData(long sequence, int count, boolean complete) {
+}
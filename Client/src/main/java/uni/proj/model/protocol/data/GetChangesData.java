@@ -0,0 +1,5 @@
+package uni.proj.model.protocol.data;
+
+// Richiesta delle modifiche all'inbox successive alla sequenza since
+public record GetChangesData(String email, long since) {
+}
@@ -0,0 +1,8 @@
+package uni.proj.model.protocol.data;
+
+// Blocco di mail in un solo messaggio, nell'ordine in cui le manda il server; ids[i] e' l'id nell'archivio di
+// mails[i], con cui il client riconosce la mail (es. per una cancellazione) anche se la sua copia non e' piu'
+// uguale a quella del server. Con il requestId di GET_INBOX o GET_CHANGES fa parte della risposta (una pagina
+// grande arriva divisa in piu' blocchi di dimensione limitata), senza e' una mail nuova consegnata in tempo reale
+public record MailBatchData(SendMailData[] mails, long[] ids) {
+}
@@ -4,19 +4,120 @@ import io.github.cdimascio.dotenv.Dotenv;
 
 public class Config {
 
+    // Modalita' di gestione delle connessioni
+    public enum IoMode {
+        THREAD, // un thread per connessione (lettura + scrittura)
+        NIO,    // event loop su Selector con pochi thread di I/O
+        VIRTUAL // come THREAD ma con thread virtuali
+    }
+
+    // Cosa fare quando la coda in uscita di un client e' piena
+    public enum OverflowPolicy {
+        BLOCK,      // chi produce attende; se il client resta fermo oltre il timeout viene disconnesso
+        DROP_CHAT,  // le chat vengono scartate, gli altri messaggi attendono come in BLOCK
+        DISCONNECT  // il client lento viene disconnesso subito
+    }
+
+    // Quando il log delle modifiche (WAL) viene forzato su disco
+    public enum FsyncPolicy {
+        NEVER,  // mai: conferma immediata, le modifiche recenti possono perdersi con un crash del sistema
+        GROUP,  // un solo force per tutte le modifiche arrivate nella finestra di group commit
+        ALWAYS  // un force per ogni modifica
+    }
+
     public static final int SERVER_PORT;
     public static final boolean NO_GUI;
+    public static final IoMode IO_MODE;
+    public static final int IO_THREADS;
+    public static final int REQUEST_THREADS;
+    public static final int INBOUND_MAX_PENDING;
+    public static final int WRITE_BATCH_MESSAGES;
+    public static final int WRITE_BATCH_BYTES;
+    public static final long WRITE_LINGER_MICROS;
+    public static final long OUTBOUND_MAX_BYTES;
+    public static final OverflowPolicy OUTBOUND_POLICY;
+    public static final long OUTBOUND_BLOCK_TIMEOUT_MS;
+    public static final int MAILBOX_LOCK_STRIPES;
+    public static final long UI_REFRESH_MS;
+    public static final FsyncPolicy WAL_FSYNC;
+    public static final long WAL_GROUP_COMMIT_MICROS;
+    public static final int WAL_GROUP_COMMIT_MAX;
+    public static final long WAL_CHECKPOINT_BYTES;
+    public static final double COMPACTION_DEAD_RATIO;
+    public static final long COMPACTION_PAUSE_MS;
+    public static final long MAILBOX_CACHE_BYTES;
+    public static final int MAILBOX_CACHE_STATS_EVERY;
+    public static final int INBOX_MAX_PAGE_SIZE;
+    public static final int MAIL_BATCH_MAX_BYTES;
+    public static final int SEARCH_MAX_RESULTS;
+    public static final int FTS_CACHED_MAILBOXES;
+    public static final int FTS_SAVE_EVERY;
+    public static final int FTS_REBUILD_THREADS;
+    public static final long REGISTRY_SNAPSHOT_ENTRIES;
+    public static final boolean BINARY_CODEC;
+    public static final boolean COMPRESSION;
+    public static final int COMPRESSION_MIN_BYTES;
+    public static final int MAX_INFLIGHT_REQUESTS;
+    public static final int PIPELINE_THREADS;
 
     static {
         Dotenv dotenv = Dotenv.configure()
                 .filename(".env")
                 .load();
 
+        int cores = Runtime.getRuntime().availableProcessors();
+
         SERVER_PORT = Integer.parseInt(dotenv.get("SERVER_PORT", "25565"));
         NO_GUI = Boolean.parseBoolean(dotenv.get("NO_GUI", "false"));
+        IO_MODE = IoMode.valueOf(dotenv.get("IO_MODE", "THREAD").trim().toUpperCase());
+        IO_THREADS = Integer.parseInt(dotenv.get("IO_THREADS", String.valueOf(cores)));
+        REQUEST_THREADS = Integer.parseInt(dotenv.get("REQUEST_THREADS", String.valueOf(cores * 2)));
+        // NIO: messaggi di un client in attesa di essere gestiti oltre i quali si sospende la lettura
+        INBOUND_MAX_PENDING = Integer.parseInt(dotenv.get("INBOUND_MAX_PENDING", "64"));
+        // scrittura verso i client: messaggi/byte massimi per flush e attesa opzionale (stile Nagle)
+        WRITE_BATCH_MESSAGES = Integer.parseInt(dotenv.get("WRITE_BATCH_MESSAGES", "256"));
+        WRITE_BATCH_BYTES = Integer.parseInt(dotenv.get("WRITE_BATCH_BYTES", "65536"));
+        WRITE_LINGER_MICROS = Long.parseLong(dotenv.get("WRITE_LINGER_MICROS", "0"));
+        OUTBOUND_MAX_BYTES = Long.parseLong(dotenv.get("OUTBOUND_MAX_BYTES", String.valueOf(4 * 1024 * 1024)));
+        OUTBOUND_POLICY = OverflowPolicy.valueOf(dotenv.get("OUTBOUND_POLICY", "BLOCK").trim().toUpperCase());
+        OUTBOUND_BLOCK_TIMEOUT_MS = Long.parseLong(dotenv.get("OUTBOUND_BLOCK_TIMEOUT_MS", "5000"));
+        MAILBOX_LOCK_STRIPES = Integer.parseInt(dotenv.get("MAILBOX_LOCK_STRIPES", "64"));
+        UI_REFRESH_MS = Long.parseLong(dotenv.get("UI_REFRESH_MS", "250"));
+        // group commit: si attende al massimo la finestra o finche' non ci sono WAL_GROUP_COMMIT_MAX modifiche
+        WAL_FSYNC = FsyncPolicy.valueOf(dotenv.get("WAL_FSYNC", "GROUP").trim().toUpperCase());
+        WAL_GROUP_COMMIT_MICROS = Long.parseLong(dotenv.get("WAL_GROUP_COMMIT_MICROS", "2000"));
+        WAL_GROUP_COMMIT_MAX = Integer.parseInt(dotenv.get("WAL_GROUP_COMMIT_MAX", "128"));
+        WAL_CHECKPOINT_BYTES = Long.parseLong(dotenv.get("WAL_CHECKPOINT_BYTES", String.valueOf(64 * 1024 * 1024)));
+        // un'inbox viene compattata quando i record morti superano questa quota; pausa tra due compattazioni
+        COMPACTION_DEAD_RATIO = Double.parseDouble(dotenv.get("COMPACTION_DEAD_RATIO", "0.3"));
+        COMPACTION_PAUSE_MS = Long.parseLong(dotenv.get("COMPACTION_PAUSE_MS", "200"));
+        // cache delle inbox: byte stimati massimi e ogni quante letture scrivere le statistiche nel log
+        MAILBOX_CACHE_BYTES = Long.parseLong(dotenv.get("MAILBOX_CACHE_BYTES", String.valueOf(32 * 1024 * 1024)));
+        MAILBOX_CACHE_STATS_EVERY = Integer.parseInt(dotenv.get("MAILBOX_CACHE_STATS_EVERY", "1000"));
+        // mail massime per pagina di GET_INBOX, qualunque sia la dimensione chiesta dal client
+        INBOX_MAX_PAGE_SIZE = Integer.parseInt(dotenv.get("INBOX_MAX_PAGE_SIZE", "200"));
+        // byte massimi delle mail in un messaggio MAIL_BATCH (pagine dell'inbox e modifiche)
+        MAIL_BATCH_MAX_BYTES = Integer.parseInt(dotenv.get("MAIL_BATCH_MAX_BYTES", "262144"));
+        // risultati massimi di una SEARCH, dalla mail piu' recente
+        SEARCH_MAX_RESULTS = Integer.parseInt(dotenv.get("SEARCH_MAX_RESULTS", "100"));
+        // indici del testo: quanti restano in memoria, ogni quante modifiche si salvano, thread della
+        // ricostruzione (0 = uno per core)
+        FTS_CACHED_MAILBOXES = Integer.parseInt(dotenv.get("FTS_CACHED_MAILBOXES", "256"));
+        FTS_SAVE_EVERY = Integer.parseInt(dotenv.get("FTS_SAVE_EVERY", "64"));
+        FTS_REBUILD_THREADS = Integer.parseInt(dotenv.get("FTS_REBUILD_THREADS", "0"));
+        // registrazioni nel log oltre le quali il checkpoint le fonde nello snapshot emails.json
+        REGISTRY_SNAPSHOT_ENTRIES = Long.parseLong(dotenv.get("REGISTRY_SNAPSHOT_ENTRIES", "1000"));
+        // accetta la codifica binaria per i client che la chiedono nell'handshake (gli altri restano in JSON)
+        BINARY_CODEC = Boolean.parseBoolean(dotenv.get("BINARY_CODEC", "true"));
+        // compressione Deflate per i client che la chiedono: i batch sotto la soglia partono in chiaro
+        COMPRESSION = Boolean.parseBoolean(dotenv.get("COMPRESSION", "true"));
+        COMPRESSION_MIN_BYTES = Integer.parseInt(dotenv.get("COMPRESSION_MIN_BYTES", "1024"));
+        // richieste indipendenti di una connessione eseguite in parallelo (1 = una alla volta) e thread del pool
+        MAX_INFLIGHT_REQUESTS = Integer.parseInt(dotenv.get("MAX_INFLIGHT_REQUESTS", "16"));
+        PIPELINE_THREADS = Integer.parseInt(dotenv.get("PIPELINE_THREADS", String.valueOf(cores * 2)));
     }
 
 
     // Costruttore privato per evitare istanziazione
     private Config() {}
-}
\ No newline at end of file
+}
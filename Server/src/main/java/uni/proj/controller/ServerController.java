@@ -1,6 +1,10 @@
 package uni.proj.controller;
 
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyStringWrapper;
 import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
@@ -12,13 +16,17 @@ import javafx.collections.*;
 
 import java.net.Socket;
 import java.net.URL;
+import java.util.Comparator;
 import java.util.ResourceBundle;
 
 import javafx.scene.layout.VBox;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
+import javafx.util.Duration;
+import uni.proj.Config;
 import uni.proj.model.ClientHandler;
 import uni.proj.model.Log;
+import uni.proj.model.Logger;
 import uni.proj.model.Server;
 import uni.proj.model.protocol.data.RegisterData;
 
@@ -32,22 +40,72 @@ public class ServerController implements Initializable {
     @FXML private TableColumn<Log, String> timeColumn;
     @FXML private TextField inputField;
 
-    private ObservableList<Log> logs;
+    private final ObservableList<Log> logs = FXCollections.observableArrayList();
+    private final ObservableList<ClientHandler> clients = FXCollections.observableArrayList();
+    private final ObservableList<RegisterData> emails = FXCollections.observableArrayList();
     private Server server;
+    private Timeline uiRefresh;
+    private long logGeneration = -1;
+    private int logCursor = 0;
+    private long clientsVersion = -1;
+    private long emailsVersion = -1;
 
     @Override
     public void initialize(URL url, ResourceBundle resourceBundle) {
-        typeColumn.setCellValueFactory(data -> data.getValue().typeProperty());
-        messageColumn.setCellValueFactory(data -> data.getValue().messageProperty());
-        timeColumn.setCellValueFactory(data -> data.getValue().timeProperty());
+        typeColumn.setCellValueFactory(data -> new ReadOnlyStringWrapper(data.getValue().getType()));
+        messageColumn.setCellValueFactory(data -> new ReadOnlyStringWrapper(data.getValue().getMessage()));
+        timeColumn.setCellValueFactory(data -> new ReadOnlyStringWrapper(data.getValue().getTime()));
         
         server = new Server();
         server.startServer();
 
-        logs = server.getLogger().getLogs();
         tableView.setItems(logs);
-        socketListView.setItems(server.getClients());
-        emailListView.setItems(server.getEmails());
+        socketListView.setItems(clients);
+        socketListView.setCellFactory(list -> new ListCell<>() {
+            @Override
+            protected void updateItem(ClientHandler item, boolean empty) {
+                super.updateItem(item, empty);
+                if (empty || item == null) {
+                    setText(null);
+                } else {
+                    // coda in uscita: chi resta indietro si vede subito
+                    setText(item + "  |  coda: " + item.getQueuedMessages() + " msg, "
+                            + item.getQueuedBytes() / 1024 + " KB, scartati: " + item.getDroppedMessages());
+                }
+            }
+        });
+        emailListView.setItems(emails);
+
+        // La UI legge lo stato del server a intervalli fissi: il costo non dipende dal numero di richieste
+        uiRefresh = new Timeline(new KeyFrame(Duration.millis(Config.UI_REFRESH_MS), event -> refreshFromServer()));
+        uiRefresh.setCycleCount(Animation.INDEFINITE);
+        uiRefresh.play();
+        refreshFromServer();
+    }
+
+    private void refreshFromServer() {
+        Logger.Batch batch = server.getLogger().logsSince(logGeneration, logCursor);
+        if (batch.reset())
+            logs.clear();
+        logs.addAll(batch.logs());
+        logGeneration = batch.generation();
+        logCursor = batch.next();
+
+        // le liste vengono sostituite solo se sono cambiate dall'ultimo giro
+        long version = server.getClientsVersion();
+        if (version != clientsVersion) {
+            clientsVersion = version;
+            clients.setAll(server.getClients());
+        } else {
+            socketListView.refresh(); // aggiorna solo le statistiche delle code
+        }
+        version = server.getEmailsVersion();
+        if (version != emailsVersion) {
+            emailsVersion = version;
+            emails.setAll(server.getEmails().stream()
+                    .sorted(Comparator.comparing(RegisterData::email))
+                    .toList());
+        }
     }
 
     @FXML
@@ -134,8 +192,9 @@ public class ServerController implements Initializable {
         Label cmd1 = new Label("/start - Avvia il server");
         Label cmd2 = new Label("/stop - Ferma il server");
         Label cmd3 = new Label("/clear - Pulisce i Log");
+        Label cmd4 = new Label("/reindex - Ricostruisce gli indici del testo delle mail");
 
-        content.getChildren().addAll(introLabel, new Separator(), cmd1, cmd2, cmd3);
+        content.getChildren().addAll(introLabel, new Separator(), cmd1, cmd2, cmd3, cmd4);
 
         scrollPane.setContent(content);
 
@@ -147,6 +206,7 @@ public class ServerController implements Initializable {
     }
 
     public void shutdown() {
+        uiRefresh.stop();
         if(server.isRunning())
             server.stopServer();
     }
@@ -0,0 +1,63 @@
+package uni.proj.model;
+
+import uni.proj.model.protocol.data.RegisterData;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Indirizzi registrati indicizzati per email minuscola: verifiche senza lock e senza scansioni
+public class AccountRegistry {
+
+    private final ConcurrentHashMap<String, RegisterData> accounts = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+
+    public boolean isRegistered(String email) {
+        return email != null && accounts.containsKey(SessionRegistry.canonical(email));
+    }
+
+    public boolean allRegistered(String[] emails) {
+        for (String email : emails) {
+            if (!isRegistered(email))
+                return false;
+        }
+        return true;
+    }
+
+    // Atomico: di due registrazioni concorrenti della stessa email ne passa una sola
+    public boolean registerIfAbsent(RegisterData data) {
+        if (accounts.putIfAbsent(SessionRegistry.canonical(data.email()), data) != null)
+            return false;
+        version.incrementAndGet();
+        return true;
+    }
+
+    // Annulla una registrazione che non e' stato possibile salvare, cosi' l'indirizzo si puo' registrare di nuovo.
+    // Toglie solo la voce inserita da questa richiesta
+    public void unregister(RegisterData data) {
+        if (accounts.remove(SessionRegistry.canonical(data.email()), data))
+            version.incrementAndGet();
+    }
+
+    // Caricamento iniziale da file, i duplicati (anche per maiuscole/minuscole) vengono ignorati
+    public void loadAll(Collection<RegisterData> registers) {
+        for (RegisterData data : registers)
+            accounts.putIfAbsent(SessionRegistry.canonical(data.email()), data);
+        version.incrementAndGet();
+    }
+
+    // Vista in sola lettura usata dalla UI
+    public Collection<RegisterData> view() {
+        return Collections.unmodifiableCollection(accounts.values());
+    }
+
+    public int size() {
+        return accounts.size();
+    }
+
+    // Cambia a ogni registrazione, la UI aggiorna la lista solo quando serve
+    public long version() {
+        return version.get();
+    }
+}
@@ -1,35 +1,70 @@
 package uni.proj.model;
 
 import com.google.gson.JsonSyntaxException;
-import javafx.application.Platform;
-import javafx.collections.ObservableList;
+import uni.proj.Config;
+import uni.proj.model.nio.NioSession;
+import uni.proj.model.protocol.FrameDeflater;
+import uni.proj.model.protocol.Handshake;
 import uni.proj.model.protocol.MessageType;
 import uni.proj.model.protocol.ProtocolMessage;
+import uni.proj.model.protocol.WireReader;
 import uni.proj.model.protocol.data.*;
 import uni.proj.model.status.Info;
 import uni.proj.model.status.Error;
 import uni.proj.model.status.Message;
+import uni.proj.model.status.Warning;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Stream;
 
 public class ClientHandler implements Runnable {
 
+    private static final Set<MessageType> PIPELINED = EnumSet.of(MessageType.SEND_MAIL, MessageType.DELETE, MessageType.FORWARD, MessageType.SEARCH);
+
     private final Server server;
     private final Socket clientSocket;
-    private final BlockingQueue<String> outgoingMessages = new LinkedBlockingQueue<>();
+    private final NioSession nioSession;
+    private final SocketAddress remoteAddress;
+    private final OutboundQueue outgoingMessages = new OutboundQueue(Config.OUTBOUND_MAX_BYTES);
+    private final AtomicLong droppedMessages = new AtomicLong();
     private volatile boolean running = true;
-    private String loggedEmail = null;
+    private volatile String loggedEmail = null;
+    // codifica binaria negoziata con l'handshake: da quel momento i messaggi in uscita partono come frame binari
+    private volatile boolean binary = false;
+    // compressione negoziata con l'handshake; la usa solo chi scrive (thread di scrittura o di I/O)
+    private volatile FrameDeflater deflater = null;
+    // richieste della connessione in esecuzione sul pool di pipelining
+    private final ReentrantLock inFlightLock = new ReentrantLock();
+    private final Condition inFlightChanged = inFlightLock.newCondition();
+    private int inFlight = 0;
 
     public ClientHandler(Server server, Socket clientSocket) {
         this.server = server;
         this.clientSocket = clientSocket;
+        this.nioSession = null;
+        this.remoteAddress = clientSocket.getRemoteSocketAddress();
+    }
+
+    // Connessione gestita dall'event loop NIO: lettura e scrittura sono a carico del NioWorker
+    public ClientHandler(Server server, NioSession nioSession) {
+        this.server = server;
+        this.clientSocket = null;
+        this.nioSession = nioSession;
+        this.remoteAddress = nioSession.getRemoteAddress();
     }
 
     @Override
@@ -37,26 +72,20 @@ public class ClientHandler implements Runnable {
         try (
                 InputStream input = clientSocket.getInputStream();
                 OutputStream output = clientSocket.getOutputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-                PrintWriter writer = new PrintWriter(output, true)
+                BufferedOutputStream writer = new BufferedOutputStream(output, Config.WRITE_BATCH_BYTES)
         ) {
-            server.getLogger().log(new Info("handler avviato per " + clientSocket.getRemoteSocketAddress()));
+            server.getLogger().log(new Info("handler avviato per " + remoteAddress));
 
             // Lettura dal client
-            Thread readerThread = new Thread(() -> {
+            Thread readerThread = server.newThread(() -> {
                 try {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        try {
-                            // Prova a decodificare usando il protocol handler
-                            ProtocolMessage<?> message = server.getProtocolHandler().decode(line);
-
-                            handleMessage(message);
-
-                        } catch (JsonSyntaxException e) {
-                            // Messaggio non valido secondo il nostro protocollo
-                            server.getLogger().log(new Error("Messaggio malformato da " + clientSocket.getRemoteSocketAddress() + ": " + line));
-                        }
+                    WireReader reader = new WireReader(input);
+                    WireReader.Frame frame;
+                    while ((frame = reader.next()) != null) {
+                        if (frame.line() != null)
+                            receive(frame.line());
+                        else
+                            receive(frame.binary());
                     }
                 } catch (IOException e) {
                     server.getLogger().log(new Error("Errore in lettura dal client: " + e.getMessage()));
@@ -68,18 +97,41 @@ public class ClientHandler implements Runnable {
 
             readerThread.start();
 
-            // Scrittura verso il client
+            // Scrittura verso il client: tutto cio' che e' in coda parte con un solo flush
+            List<OutboundMessage> batch = new ArrayList<>(Config.WRITE_BATCH_MESSAGES);
             while (running) {
                 try {
-                    String msgToSend = outgoingMessages.take();  // attende un messaggio
-                    if (msgToSend.isEmpty()) {  // messaggio di shutdown
-                        running = false;
+                    batch.add(outgoingMessages.take());  // attende un messaggio
+                    fillBatch(batch);
+                    int count = 0;
+                    long bytes = 0;
+                    for (OutboundMessage msgToSend : batch) {
+                        if (msgToSend.isShutdown()) {  // messaggio di shutdown
+                            running = false;
+                            break;
+                        }
+                        count++;
+                        bytes += msgToSend.size();
+                    }
+                    FrameDeflater compressor = deflater;
+                    if (compressor != null && bytes >= Config.COMPRESSION_MIN_BYTES) {
+                        ByteBuffer[] buffers = new ByteBuffer[count];
+                        for (int i = 0; i < count; i++)
+                            buffers[i] = batch.get(i).asBuffer();
+                        writer.write(compressor.compress(buffers, 0, count));
                     } else {
-                        writer.println(msgToSend);
+                        for (int i = 0; i < count; i++)
+                            batch.get(i).writeTo(writer);
                     }
+                    writer.flush();
+                } catch (IOException e) {
+                    server.getLogger().log(new Error("errore in scrittura in client: " + e.getMessage()));
+                    running = false;
                 } catch (InterruptedException e) {
                     server.getLogger().log(new Error("errore in scrittura in client: " + e.getMessage()));
                     running = false;
+                } finally {
+                    batch.clear();
                 }
             }
 
@@ -93,236 +145,354 @@ public class ClientHandler implements Runnable {
             } catch (IOException e) {
                 server.getLogger().log(new Error("errore chiudendo il socket: " + e.getMessage()));
             }
-            javafx.application.Platform.runLater(() -> {
-                boolean removed = server.getClients().remove(this);
-                server.getLogger().log(removed ? new Info("rimosso handler: "+ this) : new Error("errore durante la rimozione di handler: "+ this));
+            unregister();
+        }
+    }
+
+    // Aggiunge al batch i messaggi gia' in coda, ed eventualmente quelli in arrivo entro il linger,
+    // fino al numero massimo di messaggi o di byte
+    private void fillBatch(List<OutboundMessage> batch) throws InterruptedException {
+        long bytes = batch.getFirst().size();
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(Config.WRITE_LINGER_MICROS);
+        while (batch.size() < Config.WRITE_BATCH_MESSAGES && bytes < Config.WRITE_BATCH_BYTES) {
+            OutboundMessage next = outgoingMessages.poll();
+            if (next == null) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0)
+                    break;
+                next = outgoingMessages.poll(wait, TimeUnit.NANOSECONDS);
+                if (next == null)
+                    break;
+            }
+            batch.add(next);
+            bytes += next.size();
+            if (next.isShutdown())
+                break;
+        }
+    }
+
+    // Decodifica una riga ricevuta dal client e la gestisce
+    public void receive(String line) {
+        Set<String> features = Handshake.parse(line);
+        if (features != null) {
+            negotiate(features);
+            return;
+        }
+        try {
+            // Prova a decodificare usando il protocol handler
+            ProtocolMessage<?> message = server.getProtocolHandler().decode(line);
+
+            dispatch(message);
+
+        } catch (JsonSyntaxException e) {
+            // Messaggio non valido secondo il nostro protocollo
+            server.getLogger().log(new Error("Messaggio malformato da " + remoteAddress + ": " + line));
+        }
+    }
+
+    // Decodifica un frame binario (senza intestazione) e lo gestisce
+    public void receive(byte[] frame) {
+        try {
+            dispatch(server.getProtocolHandler().decodeBinary(frame));
+        } catch (IllegalArgumentException e) {
+            server.getLogger().log(new Error("Frame binario malformato da " + remoteAddress + ": " + e.getMessage()));
+        }
+    }
+
+    // Il client elenca cio' che supporta, si risponde con cio' che si accetta. La risposta va in coda prima
+    // di cambiare formato: i messaggi precedenti partono in JSON, il client li legge entrambi.
+    private void negotiate(Set<String> offered) {
+        Set<String> accepted = new LinkedHashSet<>();
+        if (Config.BINARY_CODEC && offered.contains(Handshake.BINARY))
+            accepted.add(Handshake.BINARY);
+        if (Config.COMPRESSION && offered.contains(Handshake.DEFLATE))
+            accepted.add(Handshake.DEFLATE);
+        send(OutboundMessage.text(Handshake.line(accepted)));
+        binary = accepted.contains(Handshake.BINARY);
+        if (accepted.contains(Handshake.DEFLATE) && deflater == null)
+            deflater = new FrameDeflater();
+        server.getLogger().log(new Info("handshake con " + remoteAddress + ": " + (binary ? "codifica binaria" : "JSON")
+                + (deflater != null ? " compressa" : "")));
+    }
+
+    // Chiamato dalla NioSession quando il canale viene chiuso
+    public void onChannelClosed() {
+        running = false;
+        unregister();
+    }
+
+    private void unregister() {
+        String email = loggedEmail;
+        if (email != null)
+            server.getSessions().unbind(email, this);
+        boolean removed = server.removeClient(this);
+        server.getLogger().log(removed ? new Info("rimosso handler: "+ this) : new Error("errore durante la rimozione di handler: "+ this));
+    }
+
+    // Le richieste arrivano qui nell'ordine della connessione. Quelle indipendenti (una sola risposta, nessuno
+    // stato di sessione toccato, isolamento dato dai lock delle mailbox) partono sul pool di pipelining e la
+    // lettura prosegue; le altre aspettano che quelle in corso finiscano e vengono gestite qui, in ordine.
+    private void dispatch(ProtocolMessage<?> message) {
+        Executor pipeline = server.getPipelineExecutor();
+        if (pipeline == null || !PIPELINED.contains(message.type())) {
+            awaitInFlight(0);
+            handleMessage(message);
+            return;
+        }
+        awaitInFlight(Config.MAX_INFLIGHT_REQUESTS - 1);
+        changeInFlight(1);
+        try {
+            pipeline.execute(() -> {
+                try {
+                    handleMessage(message);
+                } finally {
+                    changeInFlight(-1);
+                }
             });
+        } catch (RejectedExecutionException e) {
+            // server in chiusura
+            changeInFlight(-1);
         }
     }
 
+    // Attende che le richieste in corso su questa connessione scendano a max
+    private void awaitInFlight(int max) {
+        inFlightLock.lock();
+        try {
+            while (inFlight > max)
+                inFlightChanged.awaitUninterruptibly();
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
+
+    private void changeInFlight(int delta) {
+        inFlightLock.lock();
+        try {
+            inFlight += delta;
+            inFlightChanged.signalAll();
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
+
+    // Risposta a una richiesta del client: riporta il suo requestId
+    private void reply(ProtocolMessage<?> request, MessageType type, Object data) {
+        server.send(new ProtocolMessage<>(type, data, request.requestId()), List.of(this));
+    }
+
     private void handleMessage(ProtocolMessage<?> message) {
         switch (message.type()) {
             case CHAT -> {
                 ChatData data = (ChatData) message.data();
-                server.getLogger().log(new Message("Messaggio da " + clientSocket.getRemoteSocketAddress() + ": " + data.message()));
+                server.getLogger().log(new Message("Messaggio da " + remoteAddress + ": " + data.message()));
             }
             case RESPONSE -> {
                 ResponseData data = (ResponseData) message.data();
-                server.getLogger().log(new Message("Risposta da " + clientSocket.getRemoteSocketAddress() + ": " + data.message()));
+                server.getLogger().log(new Message("Risposta da " + remoteAddress + ": " + data.message()));
             }
             case LOGIN -> {
                 LoginData data = (LoginData) message.data();
-                server.getLogger().log(new Message("Richiesta di Login da "+ clientSocket.getRemoteSocketAddress()));
+                server.getLogger().log(new Message("Richiesta di Login da "+ remoteAddress));
                 if(loggedEmail != null) {
-                    server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.LOGIN,"Client gia' loggato")), List.of(this));
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.LOGIN,"Client gia' loggato"));
                     server.getLogger().log(new Info("richiesta di Login fallita, client gia' loggato"));
                     return;
                 }
                 if (!isValidEmail(data.email())) {
-                    server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.LOGIN,"Email non valida")), List.of(this));
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.LOGIN,"Email non valida"));
                     server.getLogger().log(new Info("richiesta di Login fallita, formato email non valido"));
                     return;
                 }
 
-                Platform.runLater(() -> {
-                    ObservableList<RegisterData> emails = server.getEmails();
-
-                    boolean isRegistered = emails.stream()
-                            .anyMatch(r -> r.email().equalsIgnoreCase(data.email()));
-
-                    if (isRegistered) {
-                        server.send(new ProtocolMessage<>(MessageType.RESPONSE, new ResponseData(MessageType.LOGIN,"Login eseguito")), List.of(this));
-                        server.getLogger().log(new Info("richiesta di login eseguita"));
-                        loggedEmail = data.email();
-                    } else {
-                        server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.LOGIN,"Mail non registrata")), List.of(this));
-                        server.getLogger().log(new Info("richiesta di login fallita"));
-                    }
-                });
+                if (server.getAccounts().isRegistered(data.email())) {
+                    reply(message, MessageType.RESPONSE, new ResponseData(MessageType.LOGIN,"Login eseguito"));
+                    server.getLogger().log(new Info("richiesta di login eseguita"));
+                    loggedEmail = data.email();
+                    server.getSessions().bind(loggedEmail, this);
+                } else {
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.LOGIN,"Mail non registrata"));
+                    server.getLogger().log(new Info("richiesta di login fallita"));
+                }
             }
             case LOGOUT -> {
-                server.getLogger().log(new Message("Richiesta di Logout da " + clientSocket.getRemoteSocketAddress()));
+                server.getLogger().log(new Message("Richiesta di Logout da " + remoteAddress));
                 if(loggedEmail == null) {
-                    server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.LOGOUT,"Client gia' disconnesso")), List.of(this));
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.LOGOUT,"Client gia' disconnesso"));
                     server.getLogger().log(new Info("richiesta di Logout fallita, client gia' disconnesso"));
                 } else {
-                    server.send(new ProtocolMessage<>(MessageType.RESPONSE, new ResponseData(MessageType.LOGOUT,"Logout eseguito")), List.of(this));
+                    reply(message, MessageType.RESPONSE, new ResponseData(MessageType.LOGOUT,"Logout eseguito"));
                     server.getLogger().log(new Info("richiesta di Logout completata"));
+                    server.getSessions().unbind(loggedEmail, this);
                     loggedEmail = null;
                 }
             }
             case REGISTER -> {
                 RegisterData data = (RegisterData) message.data();
-                server.getLogger().log(new Message("Richiesta di Register da " + clientSocket.getRemoteSocketAddress()));
+                server.getLogger().log(new Message("Richiesta di Register da " + remoteAddress));
                 if (!isValidEmail(data.email())) {
-                    server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.REGISTER,"Email non valida")), List.of(this));
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.REGISTER,"Email non valida"));
                     server.getLogger().log(new Info("richiesta di Register fallita, formato email non valido"));
                     return;
                 }
 
-                Platform.runLater(() -> {
-                    ObservableList<RegisterData> emails = server.getEmails();
-
-                    boolean isRegistered = emails.stream()
-                            .anyMatch(r -> r.email().equalsIgnoreCase(data.email()));
-
-                    if (isRegistered) {
-                        server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.REGISTER,"questa email e' gia' registrata")), List.of(this));
-                        server.getLogger().log(new Info("richiesta di Register fallita, mail gia' registrata"));
-                    } else {
-                        emails.add(data);
-                        server.send(new ProtocolMessage<>(MessageType.RESPONSE, new ResponseData(MessageType.REGISTER,"mail registrata")), List.of(this));
-                        server.getLogger().log(new Info("richiesta di Register completata"));
-                        new Thread(() -> server.saveRegister(data)).start();
-                    }
-                });
+                if (!server.getAccounts().registerIfAbsent(data)) {
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.REGISTER,"questa email e' gia' registrata"));
+                    server.getLogger().log(new Info("richiesta di Register fallita, mail gia' registrata"));
+                } else if (!server.saveRegister(data)) {
+                    server.getAccounts().unregister(data);
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.REGISTER,"errore durante il salvataggio della registrazione"));
+                    server.getLogger().log(new Info("richiesta di Register fallita, errore di salvataggio"));
+                } else {
+                    // la conferma parte solo quando la registrazione e' durevole
+                    reply(message, MessageType.RESPONSE, new ResponseData(MessageType.REGISTER,"mail registrata"));
+                    server.getLogger().log(new Info("richiesta di Register completata"));
+                }
             }
             case SEND_MAIL -> {
                 SendMailData data = (SendMailData) message.data();
-                server.getLogger().log(new Message("Richiesta di Send Mail da " + clientSocket.getRemoteSocketAddress()));
+                server.getLogger().log(new Message("Richiesta di Send Mail da " + remoteAddress));
                 if(this.loggedEmail == null) {
                     server.getLogger().log(new Info("L'utente non e' ancora loggato, impossibile inviare email"));
-                    server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.SEND_MAIL,"Il client deve prima essere loggato, operazione annullata")), List.of(this));
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.SEND_MAIL,"Il client deve prima essere loggato, operazione annullata"));
                     return;
                 }
                 if(!this.loggedEmail.equals(data.senderEmail())) {
                     server.getLogger().log(new Info("Sender email non coincide con l'email di login, operazione annullata"));
-                    server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.SEND_MAIL,"Inserisci la mail di login in senderEmail")), List.of(this));
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.SEND_MAIL,"Inserisci la mail di login in senderEmail"));
                     return;
                 }
                 for(String email : data.receiversEmail()) {
                     if(!isValidEmail(email)) {
                         server.getLogger().log(new Info("Email del destinatario non valida, operazione annullata: " + email));
-                        server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.SEND_MAIL,"Destinatario non trovato: "+email)), List.of(this));
+                        reply(message, MessageType.ERROR, new ErrorData(MessageType.SEND_MAIL,"Destinatario non trovato: "+email));
                         return;
                     }
                 }
-                AtomicBoolean allDestinationsValid = new AtomicBoolean(true);
-                CountDownLatch latch = new CountDownLatch(1);
-
                 String[] users = Stream.concat(Stream.of(data.senderEmail()), Stream.of(data.receiversEmail())).distinct().toArray(String[]::new);
 
-                Platform.runLater(() -> {
-                    try {
-                        for (String dest : users) {
-                            boolean foundDes = server.getEmails().stream()
-                                    .anyMatch(reg -> reg.email().equalsIgnoreCase(dest));
-                            if (!foundDes) {
-                                allDestinationsValid.set(false);
-                                break;
-                            }
-                        }
-                    } finally {
-                        latch.countDown(); // Sblocca il thread chiamante
-                    }
-                });
-
-                try {
-                    latch.await(); // Aspetta che la verifica sia completata
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                if(!server.getAccounts().allRegistered(users)) {
+                    server.getLogger().log(new Info("Email del destinatario non valida, operazione annullata"));
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.SEND_MAIL,"Destinatario non trovato"));
                     return;
                 }
-                if(!allDestinationsValid.get()) {
-                    server.getLogger().log(new Info("Email del destinatario non valida, operazione annullata"));
-                    server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.SEND_MAIL,"Destinatario non trovato")), List.of(this));
+                if (!server.sendEmail(data)) {
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.SEND_MAIL,"Errore durante il salvataggio della mail, riprova"));
                     return;
                 }
-                server.sendEmail(data);
                 server.getLogger().log(new Info("richiesta di Send Mail completata"));
-                server.send(new ProtocolMessage<>(MessageType.RESPONSE, new ResponseData(MessageType.SEND_MAIL, "Email inviata con successo")), List.of(this));
+                reply(message, MessageType.RESPONSE, new ResponseData(MessageType.SEND_MAIL, "Email inviata con successo"));
             }
             case DELETE -> {
                 DeleteData data = (DeleteData) message.data();
-                server.getLogger().log(new Message("Richiesta di Delete da " + clientSocket.getRemoteSocketAddress()));
+                server.getLogger().log(new Message("Richiesta di Delete da " + remoteAddress));
                 if(this.loggedEmail == null) {
                     server.getLogger().log(new Info("L'utente non e' ancora loggato, impossibile eliminare la mail"));
-                    server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.SEND_MAIL,"Il client deve prima essere loggato, operazione annullata")), List.of(this));
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.SEND_MAIL,"Il client deve prima essere loggato, operazione annullata"));
                     return;
                 }
                 for(String email : data.mail().receiversEmail()) {
                     if(!isValidEmail(email)) {
                         server.getLogger().log(new Info("Email del destinatario non valida, operazione annullata: " + email));
-                        server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.SEND_MAIL,"Destinatario non trovato: "+email)), List.of(this));
+                        reply(message, MessageType.ERROR, new ErrorData(MessageType.SEND_MAIL,"Destinatario non trovato: "+email));
                         return;
                     }
                 }
 
-                AtomicBoolean allDestinationsValid = new AtomicBoolean(true);
-                CountDownLatch latch = new CountDownLatch(1);
-
                 String[] users = Stream.concat(Stream.of(data.mail().senderEmail()), Stream.of(data.mail().receiversEmail())).distinct().toArray(String[]::new);
 
-                Platform.runLater(() -> {
-                    try {
-                        for (String dest : users) {
-                            boolean foundDes = server.getEmails().stream()
-                                    .anyMatch(reg -> reg.email().equalsIgnoreCase(dest));
-                            if (!foundDes) {
-                                allDestinationsValid.set(false);
-                                break;
-                            }
-                        }
-                    } finally {
-                        latch.countDown(); // Sblocca il thread chiamante
-                    }
-                });
-
-                try {
-                    latch.await(); // Aspetta che la verifica sia completata
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    return;
-                }
-                if(!allDestinationsValid.get()) {
+                if(!server.getAccounts().allRegistered(users)) {
                     server.getLogger().log(new Info("Email del destinatario non valida, operazione annullata"));
-                    server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.DELETE,"Destinatario non trovato")), List.of(this));
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.DELETE,"Destinatario non trovato"));
                     return;
                 }
-                server.deleteMail(data.mail(), this);
+                server.deleteMail(data, this, message.requestId());
             }
             case GET_INBOX -> {
                 GetInboxData data = (GetInboxData) message.data();
-                server.getLogger().log(new Message("Richiesta di Get Inbox da " + clientSocket.getRemoteSocketAddress()));
+                server.getLogger().log(new Message("Richiesta di Get Inbox da " + remoteAddress));
                 if(this.loggedEmail == null) {
                     server.getLogger().log(new Info("L'utente non e' ancora loggato, impossibile recuperare inbox"));
-                    server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.GET_INBOX,"Il client deve prima essere loggato, operazione annullata")), List.of(this));
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.GET_INBOX,"Il client deve prima essere loggato, operazione annullata"));
                     return;
                 }
                 if(!this.loggedEmail.equals(data.email())) {
                     server.getLogger().log(new Info("Email non coincide con l'email di login, operazione annullata"));
-                    server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.GET_INBOX,"Inserisci la mail di login in email")), List.of(this));
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.GET_INBOX,"Inserisci la mail di login in email"));
                     return;
                 }
-                server.sendInbox(this);
+                if (data.pageSize() > 0) {
+                    // la risposta e' il messaggio INBOX_PAGE che chiude la pagina
+                    if (!server.sendInboxPage(this, data.cursor(), data.pageSize(), message.requestId()))
+                        reply(message, MessageType.ERROR, new ErrorData(MessageType.GET_INBOX,"Impossibile leggere la pagina richiesta, ricarica l'inbox"));
+                    return;
+                }
+                server.sendInbox(this, message.requestId());
                 server.getLogger().log(new Info("richiesta di Send Mail completata"));
-                server.send(new ProtocolMessage<>(MessageType.RESPONSE, new ResponseData(MessageType.GET_INBOX, "Email inviata con successo")), List.of(this));
+                reply(message, MessageType.RESPONSE, new ResponseData(MessageType.GET_INBOX, "Email inviata con successo"));
+            }
+            case GET_CHANGES -> {
+                GetChangesData data = (GetChangesData) message.data();
+                server.getLogger().log(new Message("Richiesta di Get Changes da " + remoteAddress));
+                if(this.loggedEmail == null) {
+                    server.getLogger().log(new Info("L'utente non e' ancora loggato, impossibile recuperare le modifiche"));
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.GET_CHANGES,"Il client deve prima essere loggato, operazione annullata"));
+                    return;
+                }
+                if(!this.loggedEmail.equals(data.email())) {
+                    server.getLogger().log(new Info("Email non coincide con l'email di login, operazione annullata"));
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.GET_CHANGES,"Inserisci la mail di login in email"));
+                    return;
+                }
+                // la risposta e' il messaggio CHANGES che chiude l'elenco delle modifiche
+                if (!server.sendChanges(this, data.since(), message.requestId()))
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.GET_CHANGES,"Impossibile leggere le modifiche, ricarica l'inbox"));
+            }
+            case SEARCH -> {
+                SearchData data = (SearchData) message.data();
+                server.getLogger().log(new Message("Richiesta di Search da " + remoteAddress));
+                if(this.loggedEmail == null) {
+                    server.getLogger().log(new Info("L'utente non e' ancora loggato, impossibile cercare"));
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.SEARCH,"Il client deve prima essere loggato, operazione annullata"));
+                    return;
+                }
+                if(!this.loggedEmail.equals(data.email())) {
+                    server.getLogger().log(new Info("Email non coincide con l'email di login, operazione annullata"));
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.SEARCH,"Inserisci la mail di login in email"));
+                    return;
+                }
+                if (!server.search(this, data, message.requestId()))
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.SEARCH,"Errore durante la ricerca, riprova"));
             }
             case FORWARD -> {
                 ForwardData data = (ForwardData) message.data();
-                server.getLogger().log(new Message("richiesta di Forward da "+ clientSocket.getRemoteSocketAddress()));
+                server.getLogger().log(new Message("richiesta di Forward da "+ remoteAddress));
                 if(this.loggedEmail == null) {
                     server.getLogger().log(new Info("L'utente non e' ancora loggato, impossibile inoltrare la mail"));
-                    server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.FORWARD,"Il client deve prima essere loggato, operazione annullata")), List.of(this));
+                    reply(message, MessageType.ERROR, new ErrorData(MessageType.FORWARD,"Il client deve prima essere loggato, operazione annullata"));
                     return;
                 }
-                server.forwardMail(data, this);
+                server.forwardMail(data, this, message.requestId());
             }
             case ERROR -> {
                 ErrorData data = (ErrorData) message.data();
-                server.getLogger().log(new Error("Errore da " + clientSocket.getRemoteSocketAddress() + ": " + data.message()));
+                server.getLogger().log(new Error("Errore da " + remoteAddress + ": " + data.message()));
             }
             default -> {
-                server.getLogger().log(new Error("Tipo di richiesta da " + clientSocket.getRemoteSocketAddress() + " non riconosciuta"));
-                server.send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(null, "tipo di richiesta non riconosciuta")), List.of(this));
+                server.getLogger().log(new Error("Tipo di richiesta da " + remoteAddress + " non riconosciuta"));
+                reply(message, MessageType.ERROR, new ErrorData(null, "tipo di richiesta non riconosciuta"));
             }
         }
     }
 
     public void shutdown() {
         running = false;                  // ferma il ciclo di scrittura
+        if (nioSession != null) {
+            nioSession.close();           // la rimozione dalla lista avviene in onChannelClosed
+            return;
+        }
         // Sblocca il take() inserendo un messaggio "finto"
-        outgoingMessages.offer("");       // o meglio un messaggio di shutdown, serve solo per sbloccare il take()
+        outgoingMessages.force(OutboundMessage.SHUTDOWN); // serve solo per sbloccare il take()
         try {
             if (!clientSocket.isClosed()) {
                 clientSocket.close();     // chiude socket -> fa terminare la lettura (readerThread)
@@ -332,9 +502,62 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    public void send(String message) {
-        System.out.println("outgoing message: " +message);
-        outgoingMessages.add(message);
+    // Il messaggio e' gia' serializzato e puo' essere condiviso con altri client
+    // Se la coda e' piena si applica OUTBOUND_POLICY: attesa, scarto delle chat o disconnessione
+    public void send(OutboundMessage message) {
+        if (!running)
+            return;
+        if (binary) {
+            try {
+                message = message.binary(server.getProtocolHandler());
+            } catch (IllegalArgumentException | JsonSyntaxException e) {
+                server.getLogger().log(new Error("impossibile codificare " + message.type() + " per " + this + ": " + e.getMessage()));
+                return;
+            }
+        }
+        Config.OverflowPolicy policy = Config.OUTBOUND_POLICY;
+        boolean dropOnFull = policy == Config.OverflowPolicy.DISCONNECT
+                || (policy == Config.OverflowPolicy.DROP_CHAT && message.isDroppable());
+        boolean queued;
+        try {
+            queued = outgoingMessages.offer(message, dropOnFull ? 0 : TimeUnit.MILLISECONDS.toNanos(Config.OUTBOUND_BLOCK_TIMEOUT_MS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (queued) {
+            if (nioSession != null)
+                nioSession.requestWrite();
+            return;
+        }
+        if (policy == Config.OverflowPolicy.DROP_CHAT && message.isDroppable()) {
+            droppedMessages.incrementAndGet();
+            return;
+        }
+        server.getLogger().log(new Warning("client troppo lento, disconnesso: " + this));
+        shutdown();
+    }
+
+    // Compressione dei batch in uscita, null se non negoziata
+    public FrameDeflater getDeflater() {
+        return deflater;
+    }
+
+    // Usato dal NioWorker per svuotare la coda in uscita senza bloccare
+    public OutboundMessage pollOutgoing() {
+        return outgoingMessages.poll();
+    }
+
+    public int getQueuedMessages() {
+        return outgoingMessages.size();
+    }
+
+    public long getQueuedBytes() {
+        return outgoingMessages.bytes();
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages.get();
     }
 
     public boolean isRunning() {
@@ -343,7 +566,7 @@ public class ClientHandler implements Runnable {
 
     @Override
     public String toString() {
-        return clientSocket.getRemoteSocketAddress().toString();
+        return String.valueOf(remoteAddress);
     }
 
     public String getLoggedEmail() {
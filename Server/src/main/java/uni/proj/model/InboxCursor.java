@@ -0,0 +1,44 @@
+package uni.proj.model;
+
+import uni.proj.model.storage.MailboxRef;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+// Posizione nell'inbox dell'ultima mail inviata in una pagina (la piu' vecchia) e il suo id.
+// Per il client e' una stringa opaca.
+record InboxCursor(int position, long id) {
+
+    String encode() {
+        String plain = position + ":" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static InboxCursor decode(String cursor) {
+        try {
+            String plain = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = plain.indexOf(':');
+            int position = Integer.parseInt(plain.substring(0, separator));
+            long id = Long.parseLong(plain.substring(separator + 1));
+            if (position < 0)
+                throw new IllegalArgumentException("posizione negativa");
+            return new InboxCursor(position, id);
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("cursore non valido: " + cursor, e);
+        }
+    }
+
+    // Indice da cui riprendere (escluso): le nuove mail finiscono in coda e le cancellazioni spostano
+    // indietro la mail del cursore, quindi la si cerca a partire dalla vecchia posizione verso l'inizio.
+    // Se nel frattempo e' stata cancellata si riparte dalla vecchia posizione: qualche mail puo' essere
+    // rimandata, nessuna viene saltata.
+    int resume(List<MailboxRef> refs) {
+        int from = Math.min(position, refs.size() - 1);
+        for (int i = from; i >= 0; i--) {
+            if (refs.get(i).id() == id)
+                return i;
+        }
+        return Math.min(position, refs.size());
+    }
+}
@@ -1,29 +1,28 @@
 package uni.proj.model;
 
-import javafx.beans.property.SimpleStringProperty;
-import javafx.beans.property.StringProperty;
 import uni.proj.model.status.LogStatus;
 
+// Riga di log immutabile, la UI la legge tramite Logger.logsSince
 public class Log {
-    private final StringProperty type;
-    private final StringProperty message;
-    private final StringProperty time;
+    private final String type;
+    private final String message;
+    private final String time;
 
     public Log(LogStatus e) {
-        type = new SimpleStringProperty(e.getType());
-        message = new SimpleStringProperty(e.getMessage());
-        time = new SimpleStringProperty(e.getTimeString());
+        type = e.getType();
+        message = e.getMessage();
+        time = e.getTimeString();
     }
 
     public Log(String type, String message, String time) {
-        this.type = new SimpleStringProperty(type);
-        this.message = new SimpleStringProperty(message);
-        this.time = new SimpleStringProperty(time);
+        this.type = type;
+        this.message = message;
+        this.time = time;
     }
 
-    public StringProperty typeProperty() { return type; }
+    public String getType() { return type; }
 
-    public StringProperty messageProperty() { return message; }
+    public String getMessage() { return message; }
 
-    public StringProperty timeProperty() { return time; }
+    public String getTime() { return time; }
 }
@@ -1,36 +1,51 @@
 package uni.proj.model;
 
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
 import uni.proj.model.status.LogStatus;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
 import static java.io.IO.*;
 
 
 @SuppressWarnings("preview")
 public class Logger {
 
-    private boolean headerPrinted = false;
-    private final ObservableList<Log> logs;
+    // Log letti dalla UI: generation cambia a ogni clear, next e' la posizione da cui riprendere
+    public record Batch(long generation, int next, boolean reset, List<Log> logs) {}
 
-    public Logger() {
-        logs = FXCollections.observableArrayList();
-    }
+    private boolean headerPrinted = false;
+    private final List<Log> logs = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private long generation = 0;
 
 
-    public synchronized void log(LogStatus logStatus) {
-        if (!headerPrinted) {
-            printHeader();
-            headerPrinted = true;
+    public void log(LogStatus logStatus) {
+        // lock esplicito: la stampa su console non deve bloccare il carrier dei thread virtuali
+        lock.lock();
+        try {
+            if (!headerPrinted) {
+                printHeader();
+                headerPrinted = true;
+            }
+            println(logStatus);
+            logs.add(new Log(logStatus));
+            printFooter();
+        } finally {
+            lock.unlock();
         }
-        println(logStatus);
-        logs.add(new Log(logStatus));
-        printFooter();
     }
 
     public void clear() {
         print("\033[H\033[2J"); // ANSI escape per pulire il terminale (non su tutti i sistemi)
-        logs.clear();
+        lock.lock();
+        try {
+            logs.clear();
+            generation++;
+        } finally {
+            lock.unlock();
+        }
         System.out.flush();
     }
 
@@ -49,7 +64,15 @@ public class Logger {
         println(bottom);
     }
 
-    public ObservableList<Log> getLogs() {
-        return logs;
+    // Log successivi alla posizione from; se nel frattempo c'e' stato un clear si riparte da zero
+    public Batch logsSince(long seenGeneration, int from) {
+        lock.lock();
+        try {
+            boolean reset = seenGeneration != generation;
+            int start = reset ? 0 : Math.min(from, logs.size());
+            return new Batch(generation, logs.size(), reset, new ArrayList<>(logs.subList(start, logs.size())));
+        } finally {
+            lock.unlock();
+        }
     }
 }
@@ -0,0 +1,56 @@
+package uni.proj.model;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Lock striping sulle mailbox: operazioni su mailbox diverse procedono in parallelo
+public class MailboxLocks {
+
+    private final ReentrantLock[] stripes;
+
+    public MailboxLocks(int stripeCount) {
+        stripes = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++)
+            stripes[i] = new ReentrantLock();
+    }
+
+    public Held lock(String email) {
+        return lock(List.of(email));
+    }
+
+    // Le stripe vengono prese una sola volta e in ordine crescente: due operazioni
+    // che toccano piu' mailbox (es. forward) non possono andare in deadlock
+    public Held lock(Collection<String> emails) {
+        int[] indexes = emails.stream()
+                .mapToInt(this::stripeOf)
+                .distinct()
+                .sorted()
+                .toArray();
+        for (int index : indexes)
+            stripes[index].lock();
+        return new Held(indexes);
+    }
+
+    // La chiave e' l'indirizzo in forma canonica, come in SessionRegistry e AccountRegistry:
+    // indirizzi che differiscono solo per maiuscole prendono la stessa stripe
+    private int stripeOf(String email) {
+        int hash = SessionRegistry.canonical(email).hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), stripes.length);
+    }
+
+    public final class Held implements AutoCloseable {
+
+        private final int[] indexes;
+
+        private Held(int[] indexes) {
+            this.indexes = indexes;
+        }
+
+        @Override
+        public void close() {
+            for (int i = indexes.length - 1; i >= 0; i--)
+                stripes[indexes[i]].unlock();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package uni.proj.model;
+
+import uni.proj.model.protocol.MessageType;
+import uni.proj.model.protocol.ProtocolHandler;
+import uni.proj.model.protocol.ProtocolMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+// Messaggio gia' serializzato (riga JSON in UTF-8), immutabile e condiviso per riferimento tra le code dei client.
+// I byte possono stare in un array o direttamente in una porzione mappata dell'archivio messaggi.
+// La versione binaria per i client che l'hanno negoziata viene prodotta alla prima richiesta e poi condivisa.
+public final class OutboundMessage {
+
+    // usato solo per sbloccare il ciclo di scrittura in shutdown
+    static final OutboundMessage SHUTDOWN = new OutboundMessage(null, ByteBuffer.allocate(0), null);
+
+    private final MessageType type;
+    private final ByteBuffer frame;
+    // messaggio di origine se noto (anche da costruire alla prima richiesta), altrimenti lo si ricava dalla riga JSON
+    private final Supplier<? extends ProtocolMessage<?>> source;
+    private volatile OutboundMessage binary;
+
+    private OutboundMessage(MessageType type, ByteBuffer frame, Supplier<? extends ProtocolMessage<?>> source) {
+        this.type = type;
+        this.frame = frame;
+        this.source = source;
+    }
+
+    public static OutboundMessage of(MessageType type, String json) {
+        return new OutboundMessage(type, ByteBuffer.wrap((json + "\n").getBytes(StandardCharsets.UTF_8)), null);
+    }
+
+    public static OutboundMessage of(ProtocolMessage<?> message, String json) {
+        return new OutboundMessage(message.type(), ByteBuffer.wrap((json + "\n").getBytes(StandardCharsets.UTF_8)), () -> message);
+    }
+
+    // Riga gia' pronta (json seguito da '\n') composta senza passare dal messaggio, che viene costruito solo
+    // se un client binario lo chiede: cosi' la versione binaria non si ricava rileggendo la riga JSON
+    public static OutboundMessage of(MessageType type, ByteBuffer line, Supplier<? extends ProtocolMessage<?>> source) {
+        return new OutboundMessage(type, line.slice(), source);
+    }
+
+    // Riga gia' pronta per la rete (json seguito da '\n'), usata senza copiarla
+    public static OutboundMessage wrap(MessageType type, ByteBuffer frame) {
+        return new OutboundMessage(type, frame.slice(), null);
+    }
+
+    // Riga di testo fuori protocollo (risposta all'handshake), mai convertita in binario
+    static OutboundMessage text(String line) {
+        return new OutboundMessage(null, ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)), null);
+    }
+
+    // Lo stesso messaggio come frame binario; i frame presi dall'archivio vanno prima decodificati dal JSON
+    public OutboundMessage binary(ProtocolHandler protocolHandler) {
+        if (type == null)
+            return this;
+        OutboundMessage encoded = binary;
+        if (encoded == null) {
+            ProtocolMessage<?> message = source != null ? source.get()
+                    : protocolHandler.decode(StandardCharsets.UTF_8.decode(frame.duplicate()).toString());
+            encoded = new OutboundMessage(type, ByteBuffer.wrap(protocolHandler.encodeBinary(message)), () -> message);
+            encoded.binary = encoded;
+            binary = encoded;
+        }
+        return encoded;
+    }
+
+    // Vista in sola lettura: ogni sessione ha la propria posizione, i byte restano condivisi
+    public ByteBuffer asBuffer() {
+        return frame.asReadOnlyBuffer();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        if (frame.hasArray())
+            out.write(frame.array(), frame.arrayOffset(), frame.remaining());
+        else
+            Channels.newChannel(out).write(frame.duplicate());
+    }
+
+    public int size() {
+        return frame.remaining();
+    }
+
+    public MessageType type() {
+        return type;
+    }
+
+    // Le chat possono essere scartate se il client non sta al passo
+    public boolean isDroppable() {
+        return type == MessageType.CHAT;
+    }
+
+    public boolean isShutdown() {
+        return this == SHUTDOWN;
+    }
+}
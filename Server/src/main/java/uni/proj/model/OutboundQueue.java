@@ -0,0 +1,82 @@
+package uni.proj.model;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Coda in uscita di una sessione limitata in byte: chi produce puo' attendere che il client consumi
+public class OutboundQueue {
+
+    private final LinkedBlockingQueue<OutboundMessage> queue = new LinkedBlockingQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final long maxBytes;
+    private volatile long bytes = 0;
+
+    public OutboundQueue(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // Accoda se c'e' spazio, altrimenti attende al massimo timeoutNanos; false se la coda e' rimasta piena.
+    // Un messaggio piu' grande del limite passa comunque quando la coda e' vuota.
+    public boolean offer(OutboundMessage message, long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (bytes > 0 && bytes + message.size() > maxBytes) {
+                if (timeoutNanos <= 0)
+                    return false;
+                timeoutNanos = notFull.awaitNanos(timeoutNanos);
+            }
+            bytes += message.size();
+            queue.add(message);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Accoda ignorando il limite (messaggio di shutdown)
+    public void force(OutboundMessage message) {
+        lock.lock();
+        try {
+            bytes += message.size();
+            queue.add(message);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public OutboundMessage take() throws InterruptedException {
+        return released(queue.take());
+    }
+
+    public OutboundMessage poll() {
+        return released(queue.poll());
+    }
+
+    public OutboundMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return released(queue.poll(timeout, unit));
+    }
+
+    private OutboundMessage released(OutboundMessage message) {
+        if (message == null)
+            return null;
+        lock.lock();
+        try {
+            bytes -= message.size();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return message;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+}
@@ -1,12 +1,9 @@
 package uni.proj.model;
 
 import com.google.gson.*;
-import com.google.gson.reflect.TypeToken;
-import javafx.application.Platform;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
-import javafx.concurrent.Task;
 import uni.proj.Config;
+import uni.proj.model.nio.NioSession;
+import uni.proj.model.nio.NioWorker;
 import uni.proj.model.protocol.MessageType;
 import uni.proj.model.protocol.ProtocolHandler;
 import uni.proj.model.protocol.data.*;
@@ -15,30 +12,68 @@ import uni.proj.model.status.Info;
 import uni.proj.model.status.Warning;
 import uni.proj.model.status.Command;
 import uni.proj.model.protocol.ProtocolMessage;
+import uni.proj.model.storage.AccountLog;
+import uni.proj.model.storage.FullTextIndex;
+import uni.proj.model.storage.HeaderIndex;
+import uni.proj.model.storage.MailHeader;
+import uni.proj.model.storage.MailboxCache;
+import uni.proj.model.storage.MailboxChanges;
+import uni.proj.model.storage.MailboxCompactor;
+import uni.proj.model.storage.MailboxRef;
+import uni.proj.model.storage.MailboxStore;
+import uni.proj.model.storage.MessageStore;
+import uni.proj.model.storage.WalEntry;
+import uni.proj.model.storage.WriteAheadLog;
 
 import java.io.*;
-import java.lang.reflect.Type;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class Server implements Runnable {
 
     protected ServerSocket server;
-    private final ObservableList<ClientHandler> clients = FXCollections.observableArrayList();
-    private final ObservableList<RegisterData> emails = FXCollections.observableArrayList();
+    private ServerSocketChannel serverChannel;
+    private NioWorker[] nioWorkers;
+    private ExecutorService requestExecutor;
+    // richieste indipendenti di una stessa connessione eseguite in parallelo (vedi ClientHandler.dispatch)
+    private volatile ExecutorService pipelineExecutor;
+    // Strutture concorrenti senza JavaFX: la UI le legge periodicamente tramite le versioni
+    private final Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
+    private final AccountRegistry accounts = new AccountRegistry();
+    private final AtomicLong clientsVersion = new AtomicLong();
+    private final SessionRegistry sessions = new SessionRegistry();
     private final Logger logger = new Logger();
     private final ProtocolHandler protocolHandler = new ProtocolHandler();
-    private boolean isRunning = false;
+    private final MessageStore messages = new MessageStore(Paths.get("data", "messages.jsonl"), protocolHandler);
+    private final MailboxStore inboxStore = new MailboxStore(Paths.get("data", "inbox"), protocolHandler);
+    private final AccountLog accountLog = new AccountLog(Paths.get("data", "emails.json"), Paths.get("data", "emails.log"));
+    private final WriteAheadLog wal = new WriteAheadLog(Paths.get("data", "wal.log"), Config.WAL_FSYNC, Config.WAL_GROUP_COMMIT_MICROS, Config.WAL_GROUP_COMMIT_MAX);
+    // le modifiche (scrittura nel WAL + applicazione) lo prendono in lettura, il checkpoint in scrittura
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    // Lock espliciti al posto di synchronized: con i thread virtuali l'I/O su disco non blocca il carrier
+    private final MailboxLocks mailboxLocks = new MailboxLocks(Config.MAILBOX_LOCK_STRIPES);
+    private final MailboxCache mailboxCache = new MailboxCache(Config.MAILBOX_CACHE_BYTES);
+    private final HeaderIndex headerIndex = new HeaderIndex(inboxStore, Config.MAILBOX_LOCK_STRIPES);
+    private final FullTextIndex fullText = new FullTextIndex(inboxStore, messages, mailboxLocks, logger, Config.FTS_CACHED_MAILBOXES, Config.FTS_SAVE_EVERY);
+    private final MailboxCompactor compactor = new MailboxCompactor(inboxStore, headerIndex, mailboxLocks, logger, Config.COMPACTION_DEAD_RATIO, Config.COMPACTION_PAUSE_MS);
+    private volatile boolean isRunning = false;
     private boolean isInitialized = false;
     private Thread thread;
 
@@ -52,13 +87,21 @@ public class Server implements Runnable {
         logger.log(new Info("inizializzazione server"));
         try {
             if (server == null || server.isClosed()) {
-                server = new ServerSocket(Config.SERVER_PORT);
+                if (Config.IO_MODE == Config.IoMode.NIO) {
+                    // il ServerSocket resta quello del canale, cosi' porta e chiusura funzionano come prima
+                    serverChannel = ServerSocketChannel.open();
+                    serverChannel.bind(new InetSocketAddress(Config.SERVER_PORT));
+                    server = serverChannel.socket();
+                } else {
+                    server = new ServerSocket(Config.SERVER_PORT);
+                }
             }
         } catch (IOException e) {
             logger.log(new Error("errore durante l'inizializzazione: "+ e.getMessage()));
             throw new RuntimeException(e);
         }
         loadRegisters();
+        openStorage();
         logger.log(new Info("server inizializzato"));
         isInitialized = true;
     }
@@ -74,13 +117,18 @@ public class Server implements Runnable {
             return;
         }
         initServer();
-        thread = new Thread(this);
+        thread = newThread(this);
         thread.start();
     }
 
     public void listen() {
         logger.log(new Info("server in ascolto sulla porta: " + server.getLocalPort()));
         isRunning = true;
+        startPipeline();
+        if (Config.IO_MODE == Config.IoMode.NIO) {
+            listenNio();
+            return;
+        }
         while (isRunning) {
             try {
                 Socket socket = server.accept();
@@ -89,9 +137,9 @@ public class Server implements Runnable {
                 // Aggiorna la lista dei client nella UI
                 ClientHandler handler = new ClientHandler(this, socket);
 
-                javafx.application.Platform.runLater(() -> clients.add(handler));
+                addClient(handler);
 
-                new Thread(handler).start();
+                newThread(handler).start();
             } catch (IOException e) {
                 if (server.isClosed()) {
                     logger.log(new Info("server chiuso"));
@@ -103,6 +151,78 @@ public class Server implements Runnable {
         isRunning = false;
     }
 
+    // Accetta in modo bloccante e distribuisce i canali ai worker NIO a rotazione
+    private void listenNio() {
+        try {
+            startNioWorkers();
+        } catch (IOException e) {
+            logger.log(new Error("errore durante l'avvio dei worker NIO: " + e.getMessage()));
+            isRunning = false;
+            return;
+        }
+        int next = 0;
+        while (isRunning) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                logger.log(new Info("connessione accettata da " + channel.getRemoteAddress()));
+
+                NioWorker worker = nioWorkers[next++ % nioWorkers.length];
+                NioSession session = new NioSession(channel, worker, requestExecutor);
+                ClientHandler handler = new ClientHandler(this, session);
+                session.bind(handler);
+
+                addClient(handler);
+
+                worker.register(session);
+            } catch (IOException e) {
+                if (server.isClosed()) {
+                    logger.log(new Info("server chiuso"));
+                } else {
+                    logger.log(new Error("errore durante la connessione " + e.getMessage()));
+                }
+            }
+        }
+        isRunning = false;
+    }
+
+    private void startNioWorkers() throws IOException {
+        requestExecutor = Executors.newFixedThreadPool(Config.REQUEST_THREADS);
+        nioWorkers = new NioWorker[Config.IO_THREADS];
+        for (int i = 0; i < nioWorkers.length; i++) {
+            nioWorkers[i] = new NioWorker("nio-worker-" + i, logger);
+            nioWorkers[i].start();
+        }
+        logger.log(new Info("modalita' NIO: " + nioWorkers.length + " thread di I/O"));
+    }
+
+    // Pool separato da quello che legge le richieste: chi attende la fine delle richieste in corso non
+    // occupa i thread che devono eseguirle. Con MAX_INFLIGHT_REQUESTS <= 1 tutto resta sequenziale
+    private void startPipeline() {
+        if (Config.MAX_INFLIGHT_REQUESTS <= 1 || pipelineExecutor != null)
+            return;
+        pipelineExecutor = Config.IO_MODE == Config.IoMode.VIRTUAL
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(Config.PIPELINE_THREADS);
+    }
+
+    ExecutorService getPipelineExecutor() {
+        return pipelineExecutor;
+    }
+
+    private void stopNioWorkers() {
+        if (nioWorkers != null) {
+            for (NioWorker worker : nioWorkers)
+                worker.shutdown();
+            nioWorkers = null;
+        }
+        if (requestExecutor != null) {
+            requestExecutor.shutdown();
+            requestExecutor = null;
+        }
+    }
+
     public void stopServer() {
         isRunning = false;
         if(server.isClosed()) {
@@ -115,9 +235,15 @@ public class Server implements Runnable {
                 client.shutdown();
             }
             clients.clear();
+            clientsVersion.incrementAndGet();
 
             // Chiudi il ServerSocket
             server.close();
+            stopNioWorkers();
+            if (pipelineExecutor != null) {
+                pipelineExecutor.shutdown();
+                pipelineExecutor = null;
+            }
 
             logger.log(new Info("Server chiuso correttamente"));
         } catch (IOException e) {
@@ -127,28 +253,38 @@ public class Server implements Runnable {
         }
     }
 
-    public synchronized void broadcast(ProtocolMessage<?> message, ClientHandler except) {
+    public void broadcast(ProtocolMessage<?> message, ClientHandler except) {
         Class<?> dataClass = protocolHandler.getDataClassForType(message.type());
 
-        String json = protocolHandler.encode(message, dataClass);
+        OutboundMessage encoded = OutboundMessage.of(message, protocolHandler.encode(message, dataClass));
 
         for (ClientHandler client : clients) {
             if (client.equals(except)) continue;
             if (client.isRunning())
-                client.send(json);
+                client.send(encoded);
         }
     }
 
-    public synchronized void send(ProtocolMessage<?> message, List<ClientHandler> clients) {
+    public void send(ProtocolMessage<?> message, List<ClientHandler> clients) {
         Class<?> dataClass = protocolHandler.getDataClassForType(message.type());
 
+        // serializzato una sola volta, gli stessi byte vanno in coda a tutti i destinatari
+        OutboundMessage encoded = OutboundMessage.of(message, protocolHandler.encode(message, dataClass));
+
         for (ClientHandler client : clients) {
             if(client.isRunning()) {
-                client.send(protocolHandler.encode(message, dataClass));
+                client.send(encoded);
             }
         }
     }
 
+    // Thread virtuale in modalita' VIRTUAL, thread di piattaforma altrimenti
+    Thread newThread(Runnable task) {
+        if (Config.IO_MODE == Config.IoMode.VIRTUAL)
+            return Thread.ofVirtual().unstarted(task);
+        return new Thread(task);
+    }
+
     public boolean execute(String command) {
         if(command.startsWith("/")) {
             logger.log(new Command("Comando ricevuto: "+command));
@@ -160,6 +296,7 @@ public class Server implements Runnable {
                 }
                 case "/stop" -> stopServer();
                 case "/start" -> startServer();
+                case "/reindex" -> rebuildTextIndexes(true);
                 default -> {
                     logger.log(new Error("Comando non riconosciuto"));
                     return false;
@@ -173,55 +310,163 @@ public class Server implements Runnable {
         return true;
     }
 
-    public synchronized Logger getLogger() {
+    public Logger getLogger() {
         return logger;
     }
 
-    public synchronized ProtocolHandler getProtocolHandler() {
+    public ProtocolHandler getProtocolHandler() {
         return protocolHandler;
     }
 
-    public synchronized ObservableList<ClientHandler> getClients() {
-        return clients;
+    public Collection<ClientHandler> getClients() {
+        return Collections.unmodifiableSet(clients);
+    }
+
+    private void addClient(ClientHandler handler) {
+        clients.add(handler);
+        clientsVersion.incrementAndGet();
+    }
+
+    boolean removeClient(ClientHandler handler) {
+        boolean removed = clients.remove(handler);
+        if (removed)
+            clientsVersion.incrementAndGet();
+        return removed;
+    }
+
+    // Cambia a ogni connessione/disconnessione, la UI aggiorna la lista solo quando serve
+    public long getClientsVersion() {
+        return clientsVersion.get();
     }
 
-    public synchronized ObservableList<RegisterData> getEmails() {
-        return emails;
+    public SessionRegistry getSessions() {
+        return sessions;
     }
 
-    public synchronized boolean isRunning() {
+    public AccountRegistry getAccounts() {
+        return accounts;
+    }
+
+    public Collection<RegisterData> getEmails() {
+        return accounts.view();
+    }
+
+    public long getEmailsVersion() {
+        return accounts.version();
+    }
+
+    public boolean isRunning() {
         return isRunning;
     }
 
+    // Snapshot (emails.json) piu' le registrazioni successive dal log
     private void loadRegisters() {
-        Gson gson = new Gson();
-        File file = new File("data/emails.json");
-
-        if (file.exists()) {
-            try (Reader reader = new FileReader(file)) {
-                Type listType = new TypeToken<List<RegisterData>>(){}.getType();
-                List<RegisterData> emailList = gson.fromJson(reader, listType);
-
-                if (emailList != null) {
-                    javafx.application.Platform.runLater(() -> {
-                        emails.clear();
-                        emails.addAll(emailList);
-                    });
-                    logger.log(new Info("Caricate " + emailList.size() + " email da file"));
-                } else {
-                    logger.log(new Warning("Il file delle email esiste ma è vuoto"));
-                }
+        try {
+            List<RegisterData> emailList = accountLog.load();
+            accounts.loadAll(emailList);
+            logger.log(new Info("Caricate " + accounts.size() + " email (" + accountLog.entries() + " dal log delle registrazioni)"));
+        } catch (IOException e) {
+            logger.log(new Error("Errore durante il caricamento delle email: " + e.getMessage()));
+        }
+    }
+
+    private void openStorage() {
+        try {
+            messages.open();
+            int migrated = inboxStore.migrate(messages);
+            if (migrated > 0)
+                logger.log(new Info("Convertite " + migrated + " inbox nel formato a riferimenti"));
+            // le modifiche rimaste nel WAL potrebbero non essere arrivate su disco: si riapplicano
+            inboxStore.openCheckpoint(!wal.hasEntries());
+            AtomicInteger replayed = new AtomicInteger();
+            wal.open(entry -> {
+                replay(entry);
+                replayed.incrementAndGet();
+            });
+            if (replayed.get() > 0)
+                logger.log(new Info("Riapplicate " + replayed.get() + " modifiche dal WAL"));
+            checkpoint(0);
+            compactor.start();
+            rebuildTextIndexes(false);
+            logger.log(new Info("Caricati " + messages.size() + " messaggi dall'archivio"));
+        } catch (IOException e) {
+            logger.log(new Error("Errore durante l'apertura dell'archivio messaggi: " + e.getMessage()));
+        }
+    }
+
+    // Ricostruzione degli indici del testo in background su tutti i core: all'avvio solo per le mailbox
+    // che non hanno ancora un indice, con /reindex per tutte
+    private void rebuildTextIndexes(boolean all) {
+        int threads = Config.FTS_REBUILD_THREADS > 0 ? Config.FTS_REBUILD_THREADS : Runtime.getRuntime().availableProcessors();
+        Thread rebuild = new Thread(() -> {
+            try {
+                long start = System.nanoTime();
+                int built = all ? fullText.rebuildAll(threads) : fullText.rebuildMissing(threads);
+                if (built > 0 || all)
+                    logger.log(new Info("Indici del testo ricostruiti per " + built + " mailbox in " + (System.nanoTime() - start) / 1_000_000 + " ms"));
             } catch (IOException e) {
-                logger.log(new Error("Errore durante il caricamento delle email: " + e.getMessage()));
+                logger.log(new Error("Errore durante la ricostruzione degli indici del testo: " + e.getMessage()));
             }
-        } else {
-            logger.log(new Warning("File emails.json non trovato, nessuna email caricata"));
+        }, "fts-rebuild");
+        rebuild.setDaemon(true);
+        rebuild.start();
+    }
+
+    // Riapplicazione idempotente di una voce del WAL (all'avvio, senza client connessi): i record gia' scritti
+    // dopo l'ultimo checkpoint, vivi o cancellati, non si ripetono (vedi MailboxStore.replayed)
+    private void replay(WalEntry entry) {
+        try {
+            switch (entry.type()) {
+                case SEND_MAIL, FORWARD -> applyDelivery(entry.messageId(), entry.mail(), entry.receivers(), true);
+                case DELETE -> {
+                    String email = entry.mailbox();
+                    long id = entry.messageId();
+                    if (!inboxStore.replayed(email, id, true) && inboxStore.contains(email, id)) {
+                        MailboxRef tombstone = inboxStore.tombstone(email, id);
+                        mailboxCache.onTombstone(email, id);
+                        SendMailData mail = messages.get(id);
+                        if (mail != null)
+                            fullText.onRemove(email, tombstone, mail.body(), inboxStore.contains(email, id));
+                    }
+                }
+                case REGISTER -> {
+                    // gia' nel registro caricato all'avvio: manca solo l'eventuale inbox
+                    if (accounts.registerIfAbsent(entry.register()))
+                        accountLog.append(entry.register());
+                    createInbox(entry.register().email());
+                }
+                default -> logger.log(new Warning("Voce del WAL di tipo " + entry.type() + " ignorata"));
+            }
+        } catch (IOException | JsonParseException e) {
+            logger.log(new Error("Errore durante la riapplicazione del WAL: " + e.getMessage()));
         }
     }
 
+    // Rende durevoli archivio, inbox e registro e svuota il WAL se ha raggiunto minBytes
+    private void checkpoint(long minBytes) {
+        checkpointLock.writeLock().lock();
+        try {
+            if (wal.size() < minBytes)
+                return;
+            messages.force();
+            inboxStore.forceDirty();
+            accountLog.checkpoint(Config.REGISTRY_SNAPSHOT_ENTRIES);
+            wal.reset();
+            inboxStore.commitCheckpoint();
+        } catch (IOException e) {
+            logger.log(new Error("Errore durante il checkpoint del WAL: " + e.getMessage()));
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    private void maybeCheckpoint() {
+        if (wal.size() >= Config.WAL_CHECKPOINT_BYTES)
+            checkpoint(Config.WAL_CHECKPOINT_BYTES);
+    }
+
     public Path getInboxPathForEmail(String email) {
-        String encodedEmail = Base64.getUrlEncoder().withoutPadding().encodeToString(email.getBytes(StandardCharsets.UTF_8));
-        Path inboxFile = Paths.get("data", "inbox", encodedEmail + ".json");
+        Path inboxFile = inboxStore.pathFor(email);
 
         if (!Files.exists(inboxFile)) {
             System.out.println("Inbox file not found for: " + email);
@@ -230,226 +475,422 @@ public class Server implements Runnable {
         return inboxFile;
     }
 
-    public synchronized void saveRegister(RegisterData data) {
-        Gson gson = new Gson();
-        File file = new File("data/emails.json");
-
+    // Registra l'indirizzo; ritorna solo quando la modifica e' durevole nel WAL. Log delle registrazioni e inbox
+    // si scrivono dopo: se il WAL fallisce non resta nulla che al riavvio faccia ricomparire l'account annullato
+    public boolean saveRegister(RegisterData data) {
+        long sequence;
+        checkpointLock.readLock().lock();
         try {
-            List<RegisterData> emailList;
-
-            if (file.exists()) {
-                // Leggi lista esistente
-                try (Reader reader = new FileReader(file)) {
-                    Type listType = new TypeToken<List<RegisterData>>(){}.getType();
-                    emailList = gson.fromJson(reader, listType);
-                }
-                if (emailList == null) {
-                    emailList = new ArrayList<>();
-                }
-            } else {
-                emailList = new ArrayList<>();
-                file.getParentFile().mkdirs();
-                file.createNewFile();
-            }
+            sequence = wal.append(WalEntry.register(data));
+        } catch (IOException e) {
+            logger.log(new Error("Errore durante il salvataggio della registrazione: " + e.getMessage()));
+            return false;
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        try {
+            wal.awaitDurable(sequence);
+        } catch (IOException e) {
+            logger.log(new Error("Errore durante il salvataggio della registrazione: " + e.getMessage()));
+            return false;
+        }
+        checkpointLock.readLock().lock();
+        try {
+            writeRegister(data);
+        } catch (IOException e) {
+            logger.log(new Error("Errore durante il salvataggio della registrazione: " + e.getMessage()));
+            return false;
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        maybeCheckpoint();
+        return true;
+    }
 
-            // Controlla se l'email è già presente
-            boolean exists = emailList.stream()
-                    .anyMatch(r -> r.email().equalsIgnoreCase(data.email()));
+    // Una riga in coda al log delle registrazioni, niente piu' riscrittura di emails.json
+    private void writeRegister(RegisterData data) throws IOException {
+        accountLog.append(data);
+        createInbox(data.email());
+    }
 
-            if (!exists) {
-                emailList.add(data);
-                try (Writer writer = new FileWriter(file)) {
-                    gson.toJson(emailList, writer);
-                }
+    private void createInbox(String email) throws IOException {
+        try (MailboxLocks.Held held = mailboxLocks.lock(email)) {
+            inboxStore.create(email); // inbox vuota
+        }
+    }
 
-                String encodedEmail = Base64.getUrlEncoder()
-                        .withoutPadding()
-                        .encodeToString(data.email().getBytes(StandardCharsets.UTF_8));
+    // Ritorna true quando la mail e' durevole nel WAL: solo allora viene consegnata e confermata
+    public boolean sendEmail(SendMailData data) {
+        long sequence;
+        long messageId;
+        checkpointLock.readLock().lock();
+        try (MailboxLocks.Held held = mailboxLocks.lock(List.of(data.receiversEmail()))) {
+            // il contenuto viene salvato una volta sola, ogni destinatario riceve solo il riferimento
+            messageId = messages.reserveId();
+            sequence = wal.append(WalEntry.sendMail(messageId, data));
+            applyDelivery(messageId, data, data.receiversEmail(), false);
+        } catch (IOException e) {
+            logger.log(new Error("Errore durante il salvataggio della mail: " + e.getMessage()));
+            return false;
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        try {
+            wal.awaitDurable(sequence);
+        } catch (IOException e) {
+            logger.log(new Error("Errore durante il salvataggio della mail: " + e.getMessage()));
+            return false;
+        }
 
-                File inboxFile = new File("data/inbox/" + encodedEmail + ".json");
-                inboxFile.getParentFile().mkdirs();
+        // un blocco di una sola mail senza requestId: il client la mette in cima e ne conosce l'id
+        ProtocolMessage<MailBatchData> delivery = new ProtocolMessage<>(MessageType.MAIL_BATCH, new MailBatchData(new SendMailData[]{data}, new long[]{messageId}));
+        for (String email : data.receiversEmail()) {
+            List<ClientHandler> matchingClients = sessions.lookup(email);
+            if (!matchingClients.isEmpty()) {
+                send(delivery, matchingClients);
+            }
+            logger.log(new Info("Inviata email a "+ email));
+        }
+        maybeCheckpoint();
+        return true;
+    }
 
-                if (!inboxFile.exists()) {
-                    try (Writer inboxWriter = new FileWriter(inboxFile)) {
-                        inboxWriter.write("[]"); // inbox vuota
-                    }
-                }
-            } else {
-                // Email già presente, gestisci se vuoi
+    // Scrive il messaggio e aggiunge un riferimento nelle inbox indicate (un record a dimensione fissa ciascuno).
+    // In riapplicazione salta le inbox che hanno gia' il riferimento dopo l'ultimo checkpoint, anche se poi
+    // cancellato, cosi' una voce del WAL puo' essere ripetuta.
+    private void applyDelivery(long messageId, SendMailData mail, String[] receivers, boolean replay) throws IOException {
+        if (!replay || !mail.equals(messages.get(messageId)))
+            messages.put(messageId, mail);
+        Set<String> appended = new HashSet<>(List.of(receivers));
+        MailHeader header = new MailHeader(messageId, System.currentTimeMillis(), mail.senderEmail(), mail.title(), mail.receiversEmail());
+        for (String email : receivers) {
+            if (!replay || !inboxStore.replayed(email, messageId, false)) {
+                MailboxRef ref = inboxStore.append(email, new MailboxRef(messageId, 0));
+                mailboxCache.onAppend(email, ref, header);
+                fullText.onAppend(email, ref, mail.body());
+                indexHeader(email, header);
             }
+        }
+        // dopo un forward i vecchi destinatari vedono la nuova intestazione anche nelle inbox in cache e nell'indice
+        MailHeader updated = new MailHeader(messageId, MailHeader.KEEP_TIME, mail.senderEmail(), mail.title(), mail.receiversEmail());
+        for (String email : mail.receiversEmail()) {
+            if (!appended.contains(email)) {
+                mailboxCache.onUpdate(email, updated);
+                indexHeader(email, updated);
+            }
+        }
+    }
 
+    // L'indice delle intestazioni si ricostruisce da solo alla ricerca: un errore qui non annulla la consegna
+    private void indexHeader(String email, MailHeader header) {
+        try {
+            headerIndex.add(email, header);
         } catch (IOException e) {
-            e.printStackTrace();
-            // Gestisci eccezioni/log
+            logger.log(new Warning("Intestazione del messaggio " + header.id() + " non indicizzata per " + email + ": " + e.getMessage()));
         }
     }
 
-    public synchronized void sendEmail(SendMailData data) {
-        for (String email : data.receiversEmail()) {
-            saveMailToInbox(data, email);
-
-            Platform.runLater(() -> {
-                List<ClientHandler> matchingClients = clients.stream()
-                        .filter(client -> {
-                            String loggedEmail = client.getLoggedEmail();
-                            return loggedEmail != null && loggedEmail.equals(email);
-                        })
-                        .collect(Collectors.toList());
-
-                if (!matchingClients.isEmpty()) {
-                    send(new ProtocolMessage<>(MessageType.SEND_MAIL, data), matchingClients);
+    // Riferimenti e intestazioni dell'inbox dalla cache o, se manca, dal disco (e poi messi in cache): le intestazioni
+    // vengono dall'indice, solo quelle che mancano (mail precedenti all'indice) si ricostruiscono dall'archivio.
+    // Il chiamante tiene il lock della mailbox
+    private MailboxCache.CachedMailbox loadMailbox(String email) throws IOException {
+        MailboxCache.CachedMailbox mailbox = mailboxCache.get(email);
+        if (mailbox == null) {
+            long stamp = mailboxCache.stamp();
+            List<MailboxRef> refs = inboxStore.readAll(email);
+            Map<Long, MailHeader> indexed = headerIndex.load(email);
+            Map<Long, MailHeader> headers = new HashMap<>();
+            for (MailboxRef ref : refs) {
+                MailHeader header = indexed.get(ref.id());
+                if (header == null) {
+                    SendMailData mail = messages.get(ref.id());
+                    if (mail == null)
+                        continue;
+                    header = new MailHeader(ref.id(), 0, mail.senderEmail(), mail.title(), mail.receiversEmail());
+                    indexHeader(email, header);
                 }
-            });
-            logger.log(new Info("Inviata email a "+ email));
+                headers.put(ref.id(), header);
+            }
+            mailbox = new MailboxCache.CachedMailbox(refs, headers);
+            mailboxCache.put(email, mailbox, stamp);
         }
+        reportCacheStats();
+        return mailbox;
     }
 
-    public synchronized void saveMailToInbox(SendMailData data, String email) {
-        try {
-            // Codifica l'email in Base64 URL-safe
-            String encodedEmail = Base64.getUrlEncoder().withoutPadding().encodeToString(email.getBytes());
-            Path inboxDir = Paths.get("data", "inbox");
-            Path inboxFile = inboxDir.resolve(encodedEmail + ".json");
+    private void reportCacheStats() {
+        MailboxCache.Stats stats = mailboxCache.stats();
+        if ((stats.hits() + stats.misses()) % Config.MAILBOX_CACHE_STATS_EVERY == 0)
+            logger.log(new Info("cache inbox: " + stats.hits() + " hit, " + stats.misses() + " miss, " + stats.evictions()
+                    + " eviction, " + stats.entries() + " inbox, " + stats.bytes() / 1024 + " KB"));
+    }
 
-            // Assicurati che la directory esista
-            Files.createDirectories(inboxDir);
+    public void sendInbox(ClientHandler client, long requestId) {
+        List<MailboxRef> inbox;
 
-            Gson gson = new GsonBuilder().setPrettyPrinting().create();
-            JsonArray inboxArray;
+        // Solo la lettura dei riferimenti avviene sotto lock, la lettura dei messaggi e l'invio no
+        try (MailboxLocks.Held held = mailboxLocks.lock(client.getLoggedEmail())) {
+            inbox = inboxStore.readAll(client.getLoggedEmail());
+        } catch (IOException e) {
+            logger.log(new Error("Errore durante la lettura dell'inbox di " + client.getLoggedEmail() + ": " + e.getMessage()));
+            return;
+        }
 
-            // Se il file esiste, carica l'array esistente
-            if (Files.exists(inboxFile)) {
-                String content = Files.readString(inboxFile, StandardCharsets.UTF_8);
-                inboxArray = JsonParser.parseString(content).getAsJsonArray();
-            } else {
-                // Altrimenti, crea un array vuoto
-                inboxArray = new JsonArray();
-            }
+        sendBatches(client, inbox, requestId);
+    }
 
-            // Ottieni il JSON come stringa
-            Class<?> dataClass = data.getClass();
-            String stringedJson = protocolHandler.encode(new ProtocolMessage<>(MessageType.SEND_MAIL, data), dataClass);
+    // Una pagina dell'inbox dalla mail piu' recente, seguita da INBOX_PAGE con il cursore per la successiva.
+    // Servono solo i riferimenti: delle mail si leggono dall'archivio solo quelle della pagina, senza decodificarle.
+    // false se il cursore non e' valido o l'inbox non si puo' leggere
+    public boolean sendInboxPage(ClientHandler client, String cursor, int pageSize, long requestId) {
+        InboxCursor from;
+        try {
+            from = cursor == null ? null : InboxCursor.decode(cursor);
+        } catch (IllegalArgumentException e) {
+            logger.log(new Warning("Cursore dell'inbox non valido da " + client + ": " + cursor));
+            return false;
+        }
+        int size = Math.min(pageSize, Config.INBOX_MAX_PAGE_SIZE);
+
+        List<MailboxRef> page = new ArrayList<>(size);
+        String nextCursor = null;
+        long sequence;
+        try (MailboxLocks.Held held = mailboxLocks.lock(client.getLoggedEmail())) {
+            List<MailboxRef> refs = inboxStore.readAll(client.getLoggedEmail());
+            sequence = inboxStore.lastSequence(client.getLoggedEmail());
+            int end = from == null ? refs.size() : from.resume(refs);
+            int start = Math.max(0, end - size);
+            for (int i = end - 1; i >= start; i--)
+                page.add(refs.get(i));
+            if (start > 0)
+                nextCursor = new InboxCursor(start, refs.get(start).id()).encode();
+        } catch (IOException e) {
+            logger.log(new Error("Errore durante la lettura dell'inbox di " + client.getLoggedEmail() + ": " + e.getMessage()));
+            return false;
+        }
 
-            // Aggiungi il nuovo elemento all'array
-            JsonElement newElement = JsonParser.parseString(stringedJson);
-            inboxArray.add(newElement);
+        sendBatches(client, page, requestId);
+        send(new ProtocolMessage<>(MessageType.INBOX_PAGE, new InboxPageData(nextCursor, page.size(), sequence), requestId), List.of(client));
+        return true;
+    }
 
-            // Scrivi l'array aggiornato nel file
-            try (BufferedWriter writer = Files.newBufferedWriter(inboxFile)) {
-                gson.toJson(inboxArray, writer);
+    // Modifiche all'inbox dopo la sequenza since: mail nuove in MAIL_BATCH, cancellazioni come DELETE,
+    // poi CHANGES con la nuova sequenza. false se l'inbox non si puo' leggere
+    public boolean sendChanges(ClientHandler client, long since, long requestId) {
+        MailboxChanges changes;
+        try (MailboxLocks.Held held = mailboxLocks.lock(client.getLoggedEmail())) {
+            changes = inboxStore.changesSince(client.getLoggedEmail(), since);
+        } catch (IOException e) {
+            logger.log(new Error("Errore durante la lettura delle modifiche dell'inbox di " + client.getLoggedEmail() + ": " + e.getMessage()));
+            return false;
+        }
+
+        List<MailboxRef> added = new ArrayList<>();
+        for (MailboxRef ref : changes.records()) {
+            if (!ref.isTombstone()) {
+                added.add(ref);
+                continue;
+            }
+            sendBatches(client, added, requestId);
+            added.clear();
+            // il client riconosce la mail dall'id: la sua copia puo' essere precedente a un forward
+            SendMailData mail = null;
+            try {
+                mail = messages.get(ref.id());
+            } catch (IOException e) {
+                logger.log(new Error("Errore durante la lettura del messaggio " + ref.id() + ": " + e.getMessage()));
             }
+            send(new ProtocolMessage<>(MessageType.DELETE, new DeleteData(mail, ref.id())), List.of(client));
+        }
+        sendBatches(client, added, requestId);
+        send(new ProtocolMessage<>(MessageType.CHANGES, new ChangesData(changes.sequence(), changes.records().size(), changes.complete()), requestId), List.of(client));
+        return true;
+    }
 
-        } catch (IOException | JsonParseException e) {
-            e.printStackTrace();
-            // Puoi aggiungere logging o gestione errori più robusta se serve
+    // Le mail partono in blocchi MAIL_BATCH di al piu' MAIL_BATCH_MAX_BYTES (una mail piu' grande va da sola).
+    // La riga JSON si compone con i dati delle mail cosi' come sono nell'archivio, senza decodificarle; la versione
+    // binaria le decodifica dall'archivio solo se un client la chiede. I blocchi portano il requestId della richiesta
+    private void sendBatches(ClientHandler client, List<MailboxRef> refs, long requestId) {
+        List<ByteBuffer> batch = new ArrayList<>();
+        List<Long> ids = new ArrayList<>();
+        int bytes = 0;
+        for (MailboxRef ref : refs) {
+            ByteBuffer mail;
+            try {
+                mail = messages.mailJson(ref.id());
+            } catch (IOException e) {
+                logger.log(new Error("Errore durante la lettura del messaggio " + ref.id() + ": " + e.getMessage()));
+                continue;
+            }
+            if (mail == null)
+                continue;
+            if (!batch.isEmpty() && bytes + mail.remaining() > Config.MAIL_BATCH_MAX_BYTES) {
+                sendBatch(client, batch, ids, requestId);
+                batch = new ArrayList<>();
+                ids = new ArrayList<>();
+                bytes = 0;
+            }
+            batch.add(mail);
+            ids.add(ref.id());
+            bytes += mail.remaining();
         }
+        if (!batch.isEmpty())
+            sendBatch(client, batch, ids, requestId);
     }
 
-    public synchronized void sendInbox(ClientHandler client) {
-        try {
-            String encodedEmail = Base64.getUrlEncoder().withoutPadding().encodeToString(client.getLoggedEmail().getBytes());
-            Path inboxDir = Paths.get("data", "inbox");
-            Path inboxFile = inboxDir.resolve(encodedEmail + ".json");
+    private void sendBatch(ClientHandler client, List<ByteBuffer> batch, List<Long> ids, long requestId) {
+        if (!client.isRunning())
+            return;
+        long[] batchIds = ids.stream().mapToLong(Long::longValue).toArray();
+        ByteBuffer line = protocolHandler.encodeMailBatch(batch, batchIds, requestId);
+        client.send(OutboundMessage.of(MessageType.MAIL_BATCH, line, () -> new ProtocolMessage<>(MessageType.MAIL_BATCH, batchOf(batchIds), requestId)));
+    }
 
-            JsonArray inboxArray;
+    private MailBatchData batchOf(long[] ids) {
+        List<SendMailData> mails = new ArrayList<>(ids.length);
+        List<Long> found = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            SendMailData mail = null;
+            try {
+                mail = messages.get(id);
+            } catch (IOException e) {
+                logger.log(new Error("Errore durante la lettura del messaggio " + id + ": " + e.getMessage()));
+            }
+            if (mail != null) {
+                mails.add(mail);
+                found.add(id);
+            }
+        }
+        return new MailBatchData(mails.toArray(SendMailData[]::new), found.stream().mapToLong(Long::longValue).toArray());
+    }
 
-            // Se il file esiste, carica l'array esistente
-            if (Files.exists(inboxFile)) {
-                String content = Files.readString(inboxFile, StandardCharsets.UTF_8);
-                inboxArray = JsonParser.parseString(content).getAsJsonArray();
+    // Ricerca nell'inbox per mittente, destinatario, parte del titolo, intervallo di consegna e parole del corpo.
+    // Si filtra sugli indici (intestazioni e testo) e si leggono dall'archivio solo le mail trovate.
+    // false se l'inbox non si puo' leggere
+    public boolean search(ClientHandler client, SearchData filter, long requestId) {
+        String email = client.getLoggedEmail();
+        boolean fullTextQuery = filter.text() != null && !filter.text().isBlank();
+        List<Long> candidates = new ArrayList<>();
+        MailboxCache.CachedMailbox mailbox;
+        try (MailboxLocks.Held held = mailboxLocks.lock(email)) {
+            mailbox = loadMailbox(email);
+            List<MailboxRef> refs = mailbox.refs();
+            Set<Long> live = new LinkedHashSet<>();
+            for (int i = refs.size() - 1; i >= 0; i--)
+                live.add(refs.get(i).id());
+            // con il testo l'ordine e' quello di rilevanza, altrimenti dalla mail piu' recente
+            if (fullTextQuery) {
+                for (long id : fullText.search(email, filter.text())) {
+                    if (live.contains(id))
+                        candidates.add(id);
+                }
             } else {
-                inboxArray = new JsonArray();
+                candidates.addAll(live);
             }
+        } catch (IOException e) {
+            logger.log(new Error("Errore durante la lettura dell'indice di " + email + ": " + e.getMessage()));
+            return false;
+        }
 
-            for (int i = 0; i < inboxArray.size(); i++) {
-                JsonObject mailData = inboxArray.get(i).getAsJsonObject().getAsJsonObject("data");
-                JsonArray receiversArray = mailData.getAsJsonArray("receiversEmail");
-                String[] receivers = new String[receiversArray.size()];
-                for (int j = 0; j < receiversArray.size(); j++) {
-                    receivers[j] = receiversArray.get(j).getAsString();
+        String title = filter.title() == null ? null : filter.title().toLowerCase();
+        List<SendMailData> found = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        boolean truncated = false;
+        for (long id : candidates) {
+            try {
+                MailHeader header = mailbox.header(id);
+                if (header == null) {
+                    // mail consegnata prima dell'indice o intestazione persa: la si ricostruisce dall'archivio
+                    SendMailData mail = messages.get(id);
+                    if (mail == null)
+                        continue;
+                    header = new MailHeader(id, 0, mail.senderEmail(), mail.title(), mail.receiversEmail());
+                    headerIndex.add(email, header);
                 }
-                send(new ProtocolMessage<>(MessageType.SEND_MAIL, new SendMailData(mailData.get("senderEmail").getAsString(), mailData.get("title").getAsString(), mailData.get("body").getAsString(), receivers)), List.of(client));
+                if (filter.sender() != null && !filter.sender().equalsIgnoreCase(header.sender()))
+                    continue;
+                if (filter.recipient() != null && Arrays.stream(header.receivers()).noneMatch(filter.recipient()::equalsIgnoreCase))
+                    continue;
+                if (title != null && !header.title().toLowerCase().contains(title))
+                    continue;
+                if ((filter.from() != null && header.time() < filter.from()) || (filter.to() != null && header.time() > filter.to()))
+                    continue;
+                if (found.size() == Config.SEARCH_MAX_RESULTS) {
+                    truncated = true;
+                    break;
+                }
+                SendMailData mail = messages.get(id);
+                if (mail != null) {
+                    found.add(mail);
+                    times.add(header.time());
+                }
+            } catch (IOException e) {
+                logger.log(new Error("Errore durante la lettura del messaggio " + id + ": " + e.getMessage()));
             }
+        }
 
+        long[] deliveredAt = times.stream().mapToLong(Long::longValue).toArray();
+        send(new ProtocolMessage<>(MessageType.SEARCH_RESULT, new SearchResultData(found.toArray(SendMailData[]::new), deliveredAt, truncated), requestId), List.of(client));
+        return true;
+    }
 
-        } catch (IOException | JsonParseException e) {
-            e.printStackTrace();
-            // Puoi aggiungere logging o gestione errori più robusta se serve
+    // Primo riferimento dell'inbox che punta a una mail uguale a quella indicata dal client, null se non c'e'.
+    // Si confrontano prima le intestazioni in cache, il corpo si legge solo per quelle uguali
+    private MailboxRef findInInbox(String email, SendMailData mail) throws IOException {
+        MailboxCache.CachedMailbox mailbox = loadMailbox(email);
+        for (MailboxRef ref : mailbox.refs()) {
+            MailHeader header = mailbox.header(ref.id());
+            if (header != null && (header.receivers() == null
+                    || !mail.equals(new SendMailData(header.sender(), header.title(), mail.body(), header.receivers()))))
+                continue;
+            if (mail.equals(messages.get(ref.id())))
+                return ref;
         }
+        return null;
     }
 
-    public synchronized void forwardMail(ForwardData data, ClientHandler clientHandler) {
+    // Riferimento vivo al messaggio con questo id, null se l'inbox non lo contiene
+    private MailboxRef findInInbox(String email, long id) throws IOException {
+        for (MailboxRef ref : loadMailbox(email).refs()) {
+            if (ref.id() == id)
+                return ref;
+        }
+        return null;
+    }
+
+    // Risponde sempre al client (RESPONSE o ERROR con il requestId), cosi' la richiesta non resta in sospeso
+    public void forwardMail(ForwardData data, ClientHandler clientHandler, long requestId) {
         SendMailData mailToForward = data.mail();
         String[] forwardTo = data.forwardTo();
         String requestFrom = clientHandler.getLoggedEmail();
 
-        // Step 1: otteniamo il path del file inbox
-        String encodedEmail = Base64.getUrlEncoder().withoutPadding().encodeToString(requestFrom.getBytes(StandardCharsets.UTF_8));
-        Path inboxFile = Paths.get("data", "inbox", encodedEmail + ".json");
-
-        if (!Files.exists(inboxFile)) {
-            System.out.println("Inbox file not found for: " + requestFrom);
-            return;
-        }
-
-        try {
-            // Step 2: leggiamo il contenuto del file
-            String jsonContent = Files.readString(inboxFile, StandardCharsets.UTF_8);
-            JsonArray inboxArray = JsonParser.parseString(jsonContent).getAsJsonArray();
-
-            // Step 3: cerchiamo se c'è una mail identica a quella da inoltrare
-            Gson gson = new Gson();
-            boolean found = false;
-
-            for (JsonElement element : inboxArray) {
-                JsonObject obj = element.getAsJsonObject();
-                if (!obj.has("type") || !obj.get("type").getAsString().equals("SEND_MAIL")) continue;
-
-                JsonObject dataObj = obj.getAsJsonObject("data");
-                SendMailData mail = gson.fromJson(dataObj, SendMailData.class);
-
-                if (mail.equals(mailToForward)) {
-                    found = true;
-                    break;
-                }
-            }
-
-            if (!found) {
-                System.out.println("La mail da inoltrare non è stata trovata nella inbox.");
+        // mailbox coinvolte: chi inoltra e i nuovi destinatari (le inbox dei vecchi non vengono toccate)
+        List<String> mailboxes = new ArrayList<>();
+        mailboxes.add(requestFrom);
+        mailboxes.addAll(List.of(forwardTo));
+
+        long sequence;
+        checkpointLock.readLock().lock();
+        try (MailboxLocks.Held held = mailboxLocks.lock(mailboxes)) {
+            // Step 1: verifichiamo che la inbox esista
+            if (!inboxStore.exists(requestFrom)) {
+                logger.log(new Warning("Forward interrotto: inbox non trovata per " + requestFrom));
+                send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.FORWARD, "inbox non trovata"), requestId), List.of(clientHandler));
                 return;
             }
 
-            // Se siamo qui, la mail esiste: possiamo continuare col forward
-            System.out.println("Mail trovata. Procedo con il forward...");
-
-            AtomicBoolean allDestinationsValid = new AtomicBoolean(true);
-            CountDownLatch latch = new CountDownLatch(1);
-
-            Platform.runLater(() -> {
-                try {
-                    for (String dest : forwardTo) {
-                        boolean foundDes = emails.stream()
-                                .anyMatch(reg -> reg.email().equalsIgnoreCase(dest));
-                        if (!foundDes) {
-                            System.out.println("Destinatario non valido: " + dest);
-                            allDestinationsValid.set(false);
-                            break;
-                        }
-                    }
-                } finally {
-                    latch.countDown(); // Sblocca il thread chiamante
-                }
-            });
-
-            try {
-                latch.await(); // Aspetta che la verifica sia completata
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            // Step 2: cerchiamo se c'è una mail identica a quella da inoltrare
+            MailboxRef ref = findInInbox(requestFrom, mailToForward);
+            if (ref == null) {
+                logger.log(new Warning("Forward interrotto: mail da inoltrare non trovata nella inbox di " + requestFrom));
+                send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.FORWARD, "mail da inoltrare non trovata"), requestId), List.of(clientHandler));
                 return;
             }
 
-            if (!allDestinationsValid.get()) {
-                System.out.println("Forward interrotto: uno o più destinatari non validi.");
+            // Se siamo qui, la mail esiste: possiamo continuare col forward
+            if (!accounts.allRegistered(forwardTo)) {
+                logger.log(new Warning("Forward interrotto: uno o più destinatari non validi"));
+                send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.FORWARD, "destinatario non trovato"), requestId), List.of(clientHandler));
                 return;
             }
 
@@ -462,158 +903,79 @@ public class Server implements Runnable {
             Set<String> updatedReceivers = new LinkedHashSet<>(oldReceivers);
             updatedReceivers.addAll(newReceivers);
 
-            getForwardRecipientsAsync(forwardTo, recipients ->{
-                send(new ProtocolMessage<>(MessageType.FORWARD, new ForwardData(mailToForward, Stream.concat(Arrays.stream(mailToForward.receiversEmail()), Arrays.stream(forwardTo)).toArray(size -> Arrays.copyOf(mailToForward.receiversEmail(), size)))), recipients);
-            });
-
-            for (String oldDest : oldReceivers) {
-                Path oldInbox = getInboxPathForEmail(oldDest);
-                if (!Files.exists(oldInbox)) continue;
-
-                try {
-                    JsonArray inbox = JsonParser.parseString(Files.readString(oldInbox, StandardCharsets.UTF_8)).getAsJsonArray();
-                    boolean modified = false;
-
-                    for (JsonElement el : inbox) {
-                        JsonObject obj = el.getAsJsonObject();
-                        if (!obj.has("type") || !obj.get("type").getAsString().equals("SEND_MAIL")) continue;
-
-                        JsonObject dataObj = obj.getAsJsonObject("data");
-                        SendMailData parsed = gson.fromJson(dataObj, SendMailData.class);
-
-                        if (parsed.equals(mailToForward)) {
-                            JsonArray newArray = new JsonArray();
-                            for (String r : updatedReceivers) newArray.add(r);
-                            dataObj.add("receiversEmail", newArray);
-                            modified = true;
-                            break;
-                        }
-                    }
-
-                    if (modified) {
-                        Files.writeString(oldInbox, gson.toJson(inbox), StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING);
-                    }
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-
-            JsonObject mailJson = new JsonObject();
-            mailJson.addProperty("type", "SEND_MAIL");
-
-            JsonElement dataElement = gson.toJsonTree(mailToForward);
-            mailJson.add("data", dataElement);
-
-            JsonArray receiversArray = dataElement.getAsJsonObject().getAsJsonArray("receiversEmail");
-
-            for (String email : forwardTo) {
-                receiversArray.add(email);
-            }
-
-            for (String newDest : newReceivers) {
-                Path newInbox = getInboxPathForEmail(newDest);
-
-                JsonArray inbox;
-                try {
-                    if (Files.exists(newInbox)) {
-                        inbox = JsonParser.parseString(Files.readString(newInbox, StandardCharsets.UTF_8)).getAsJsonArray();
-                    } else {
-                        Files.createDirectories(newInbox.getParent());
-                        inbox = new JsonArray();
-                    }
-                    inbox.add(mailJson.deepCopy());
-
-                    Files.writeString(newInbox, gson.toJson(inbox), StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            // un solo aggiornamento dell'intestazione, visibile da tutte le inbox che referenziano il messaggio,
+            // e un riferimento per ogni nuovo destinatario
+            SendMailData updatedMail = new SendMailData(mailToForward.senderEmail(), mailToForward.title(), mailToForward.body(), updatedReceivers.toArray(String[]::new));
+            String[] added = newReceivers.toArray(String[]::new);
+            sequence = wal.append(WalEntry.forward(ref.id(), updatedMail, added));
+            applyDelivery(ref.id(), updatedMail, added, false);
 
         } catch (IOException | JsonParseException e) {
-            e.printStackTrace();
-        }
-    }
-
-    public void getForwardRecipientsAsync(String[] forwardTo, java.util.function.Consumer<List<ClientHandler>> callback) {
-        // Step 1: copia veloce in JavaFX thread
-        Platform.runLater(() -> {
-            List<ClientHandler> snapshot = new ArrayList<>(clients); // copia sicura
-
-            // Step 2: esegui il filtraggio in background
-            Task<List<ClientHandler>> task = new Task<>() {
-                @Override
-                protected List<ClientHandler> call() {
-                    List<ClientHandler> result = new ArrayList<>();
-                    for (ClientHandler ch : snapshot) {
-                        String email = ch.getLoggedEmail();
-                        if (email != null) {
-                            for (String fwd : forwardTo) {
-                                if (email.equalsIgnoreCase(fwd)) {
-                                    result.add(ch);
-                                    break;
-                                }
-                            }
-                        }
-                    }
-                    return result;
-                }
-
-                @Override
-                protected void succeeded() {
-                    // callback col risultato
-                    callback.accept(getValue());
-                }
-
-                @Override
-                protected void failed() {
-                    callback.accept(new ArrayList<>()); // fallback vuoto
-                }
-            };
+            logger.log(new Error("Errore durante l'inoltro: " + e.getMessage()));
+            send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.FORWARD, "errore durante l'inoltro, riprova"), requestId), List.of(clientHandler));
+            return;
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        try {
+            wal.awaitDurable(sequence);
+        } catch (IOException e) {
+            logger.log(new Error("Errore durante il salvataggio del forward: " + e.getMessage()));
+            send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.FORWARD, "errore durante l'inoltro, riprova"), requestId), List.of(clientHandler));
+            return;
+        }
+        send(new ProtocolMessage<>(MessageType.RESPONSE, new ResponseData(MessageType.FORWARD, "mail inoltrata"), requestId), List.of(clientHandler));
 
-            Thread thread = new Thread(task);
-            thread.setDaemon(true);
-            thread.start();
-        });
+        List<ClientHandler> recipients = sessions.lookupAll(forwardTo);
+        if (!recipients.isEmpty()) {
+            send(new ProtocolMessage<>(MessageType.FORWARD, new ForwardData(mailToForward, Stream.concat(Arrays.stream(mailToForward.receiversEmail()), Arrays.stream(forwardTo)).toArray(size -> Arrays.copyOf(mailToForward.receiversEmail(), size)))), recipients);
+        }
+        maybeCheckpoint();
     }
 
-    public void deleteMail(SendMailData mail, ClientHandler client) {
+    // Con l'id (data.id() != 0) si cancella il riferimento a quel messaggio, altrimenti il primo con lo stesso contenuto
+    public void deleteMail(DeleteData data, ClientHandler client, long requestId) {
         String loggedEmail = client.getLoggedEmail();
-        String encodedEmail = Base64.getUrlEncoder().withoutPadding().encodeToString(loggedEmail.getBytes(StandardCharsets.UTF_8));
-        Path inboxFile = Paths.get("data", "inbox", encodedEmail + ".json");
 
-        if (!Files.exists(inboxFile)) {
-            System.out.println("Inbox file not found for: " + loggedEmail);
+        if (!inboxStore.exists(loggedEmail)) {
+            send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.DELETE, "inbox non trovata"), requestId), List.of(client));
             return;
         }
 
-        boolean modified = false;
-
-        try {
-            JsonArray inbox = JsonParser.parseString(Files.readString(inboxFile, StandardCharsets.UTF_8)).getAsJsonArray();
-            System.out.println("\nMAIL DA CERCARE:\n\n"+mail);
-
-            for (JsonElement el : inbox) {
-                SendMailData decoded = (SendMailData) protocolHandler.decode(el.toString()).data();
-                System.out.println("\nCONFRONTO CON:\n\n"+decoded);
-                if(decoded.equals(mail)) {
-                    inbox.remove(el);
-                    modified = true;
-                    break;
-                }
+        long sequence;
+        checkpointLock.readLock().lock();
+        try (MailboxLocks.Held held = mailboxLocks.lock(loggedEmail)) {
+            // si annulla solo il riferimento con un tombstone, il messaggio resta nell'archivio per gli altri destinatari
+            MailboxRef ref = data.id() != 0 ? findInInbox(loggedEmail, data.id()) : findInInbox(loggedEmail, data.mail());
+            SendMailData mail = ref == null ? null : messages.get(ref.id());
+            if (mail == null) {
+                logger.log(new Info("mail non trovata"));
+                send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.DELETE, "mail non trovata"), requestId), List.of(client));
+                return;
             }
-            if(modified)
-                Files.writeString(inboxFile, inbox.toString(), StandardCharsets.UTF_8);
+            sequence = wal.append(WalEntry.delete(loggedEmail, ref.id()));
+            MailboxRef tombstone = inboxStore.tombstone(loggedEmail, ref.id());
+            mailboxCache.onTombstone(loggedEmail, ref.id());
+            boolean stillLive = loadMailbox(loggedEmail).refs().stream().anyMatch(other -> other.id() == ref.id());
+            fullText.onRemove(loggedEmail, tombstone, mail.body(), stillLive);
 
-        } catch (IOException e) {
-            //ignora
+        } catch (IOException | JsonParseException e) {
+            logger.log(new Error("Errore durante la cancellazione: " + e.getMessage()));
+            send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.DELETE, "errore durante la cancellazione, riprova"), requestId), List.of(client));
+            return;
+        } finally {
+            checkpointLock.readLock().unlock();
         }
-        if(modified) {
-            logger.log(new Info("mail cancellata correttamente"));
-            send(new ProtocolMessage<>(MessageType.RESPONSE, new ResponseData(MessageType.DELETE, "mail eliminata correttamente")), List.of(client));
-        } else {
-            logger.log(new Info("mail non trovata"));
-            send(new ProtocolMessage<>(MessageType.ERROR, new ResponseData(MessageType.DELETE, "mail non trovata")), List.of(client));
+        try {
+            wal.awaitDurable(sequence);
+        } catch (IOException e) {
+            logger.log(new Error("Errore durante il salvataggio della cancellazione: " + e.getMessage()));
+            send(new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.DELETE, "errore durante la cancellazione, riprova"), requestId), List.of(client));
+            return;
         }
+        logger.log(new Info("mail cancellata correttamente"));
+        send(new ProtocolMessage<>(MessageType.RESPONSE, new ResponseData(MessageType.DELETE, "mail eliminata correttamente"), requestId), List.of(client));
+        compactor.schedule(loggedEmail);
+        maybeCheckpoint();
     }
 }
@@ -0,0 +1,46 @@
+package uni.proj.model;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Tabella di instradamento: email (minuscola) -> sessioni loggate con quell'email
+public class SessionRegistry {
+
+    private final ConcurrentHashMap<String, Set<ClientHandler>> sessions = new ConcurrentHashMap<>();
+
+    public void bind(String email, ClientHandler handler) {
+        sessions.compute(canonical(email), (key, set) -> {
+            if (set == null)
+                set = ConcurrentHashMap.newKeySet();
+            set.add(handler);
+            return set;
+        });
+    }
+
+    public void unbind(String email, ClientHandler handler) {
+        sessions.computeIfPresent(canonical(email), (key, set) -> {
+            set.remove(handler);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    public List<ClientHandler> lookup(String email) {
+        Set<ClientHandler> set = sessions.get(canonical(email));
+        return set == null ? List.of() : new ArrayList<>(set);
+    }
+
+    // Sessioni di tutti gli indirizzi richiesti, senza duplicati
+    public List<ClientHandler> lookupAll(String[] emails) {
+        Set<ClientHandler> result = new LinkedHashSet<>();
+        for (String email : emails) {
+            Set<ClientHandler> set = sessions.get(canonical(email));
+            if (set != null)
+                result.addAll(set);
+        }
+        return new ArrayList<>(result);
+    }
+
+    public static String canonical(String email) {
+        return email.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,89 @@
+package uni.proj.model.nio;
+
+import uni.proj.model.protocol.BinaryCodec;
+import uni.proj.model.protocol.FrameDeflater;
+import uni.proj.model.protocol.FrameInflater;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+// Ricompone i messaggi del protocollo a partire dai byte letti dal canale: righe di testo (un JSON per riga,
+// o l'handshake), frame binari e frame compressi, riconosciuti dal primo byte. Il contenuto decompresso
+// passa da un secondo framer con le stesse callback.
+public class LineFramer {
+
+    private static final int MAX_LINE_LENGTH = 16 * 1024 * 1024;
+
+    private byte[] buffer = new byte[1024];
+    private int size = 0;
+    // frame binario in lettura: byte dell'intestazione ancora da leggere, poi del corpo
+    private boolean binary = false;
+    private byte marker;
+    private int headerRemaining = 0;
+    private int frameLength = -1;
+    private FrameInflater inflater;
+    private LineFramer inflated;
+
+    public void feed(ByteBuffer input, Consumer<String> onLine, Consumer<byte[]> onFrame) throws IOException {
+        while (input.hasRemaining()) {
+            if (binary) {
+                readFrame(input, onLine, onFrame);
+                continue;
+            }
+            byte b = input.get();
+            if (size == 0 && (b == BinaryCodec.MARKER || b == FrameDeflater.MARKER)) {
+                binary = true;
+                marker = b;
+                headerRemaining = BinaryCodec.HEADER_BYTES - 1;
+                frameLength = 0;
+                continue;
+            }
+            if (b == '\n') {
+                int end = size;
+                if (end > 0 && buffer[end - 1] == '\r')
+                    end--;
+                onLine.accept(new String(buffer, 0, end, StandardCharsets.UTF_8));
+                size = 0;
+                continue;
+            }
+            if (size == buffer.length) {
+                if (size >= MAX_LINE_LENGTH)
+                    throw new IOException("riga troppo lunga, connessione chiusa");
+                buffer = Arrays.copyOf(buffer, Math.min(size * 2, MAX_LINE_LENGTH));
+            }
+            buffer[size++] = b;
+        }
+    }
+
+    private void readFrame(ByteBuffer input, Consumer<String> onLine, Consumer<byte[]> onFrame) throws IOException {
+        if (headerRemaining > 0) {
+            frameLength = (frameLength << 8) | (input.get() & 0xFF);
+            if (--headerRemaining > 0)
+                return;
+            if (frameLength < 0 || frameLength > BinaryCodec.MAX_FRAME_LENGTH)
+                throw new IOException("frame di lunghezza non valida: " + frameLength);
+            if (buffer.length < frameLength)
+                buffer = new byte[Math.max(frameLength, Math.min(buffer.length * 2, BinaryCodec.MAX_FRAME_LENGTH))];
+        }
+        int count = Math.min(frameLength - size, input.remaining());
+        input.get(buffer, size, count);
+        size += count;
+        if (size == frameLength) {
+            byte[] payload = Arrays.copyOf(buffer, frameLength);
+            size = 0;
+            binary = false;
+            if (marker == BinaryCodec.MARKER) {
+                onFrame.accept(payload);
+                return;
+            }
+            if (inflater == null) {
+                inflater = new FrameInflater();
+                inflated = new LineFramer();
+            }
+            inflated.feed(ByteBuffer.wrap(inflater.inflate(payload)), onLine, onFrame);
+        }
+    }
+}
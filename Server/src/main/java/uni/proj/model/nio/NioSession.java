@@ -0,0 +1,174 @@
+package uni.proj.model.nio;
+
+import uni.proj.Config;
+import uni.proj.model.ClientHandler;
+import uni.proj.model.OutboundMessage;
+import uni.proj.model.protocol.FrameDeflater;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Stato di una connessione gestita dall'event loop: buffer di lettura, framing e scrittura pendente
+public class NioSession {
+
+    private final SocketChannel channel;
+    private final NioWorker worker;
+    private final SocketAddress remoteAddress;
+    private final Executor inbound;
+    private final LineFramer framer = new LineFramer();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    // messaggi letti e non ancora gestiti: oltre INBOUND_MAX_PENDING si smette di leggere dal socket
+    private final AtomicInteger pendingInbound = new AtomicInteger();
+    // usati solo dal thread di I/O
+    private boolean readPaused = false;
+    private boolean writeBlocked = false;
+    private final ByteBuffer[] batch = new ByteBuffer[Config.WRITE_BATCH_MESSAGES];
+    private int batchStart = 0;
+    private int batchEnd = 0;
+    private SelectionKey key;
+    private ClientHandler handler;
+
+    public NioSession(SocketChannel channel, NioWorker worker, Executor requestExecutor) throws IOException {
+        this.channel = channel;
+        this.worker = worker;
+        this.remoteAddress = channel.getRemoteAddress();
+        // i messaggi dello stesso client vengono gestiti in ordine, fuori dal thread di I/O
+        this.inbound = new SerialExecutor(requestExecutor);
+    }
+
+    public void bind(ClientHandler handler) {
+        this.handler = handler;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    // Chiamato dal thread di I/O del worker
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        // messaggi accodati prima della registrazione
+        flush();
+    }
+
+    // Chiamato dal thread di I/O quando il canale e' leggibile
+    void onReadable() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read == -1) {
+            close();
+            return;
+        }
+        readBuffer.flip();
+        framer.feed(readBuffer,
+                line -> submit(() -> handler.receive(line)),
+                frame -> submit(() -> handler.receive(frame)));
+        readBuffer.clear();
+        // il client manda richieste piu' in fretta di quanto vengano gestite: il resto aspetta nel socket
+        // (e quindi nel client, per il controllo di flusso TCP) finche' la coda non si svuota
+        if (pendingInbound.get() >= Config.INBOUND_MAX_PENDING) {
+            readPaused = true;
+            interest(writeBlocked);
+        }
+    }
+
+    private void submit(Runnable task) {
+        pendingInbound.incrementAndGet();
+        inbound.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                if (pendingInbound.decrementAndGet() == Config.INBOUND_MAX_PENDING / 2)
+                    worker.requestResume(this);
+            }
+        });
+    }
+
+    // Chiamato dal thread di I/O: riprende a leggere se la coda e' scesa a meta' del limite
+    void resume() {
+        if (!readPaused || key == null || pendingInbound.get() > Config.INBOUND_MAX_PENDING / 2)
+            return;
+        readPaused = false;
+        interest(writeBlocked);
+    }
+
+    // Chiamato dal thread di I/O: svuota la coda in uscita finche' il socket accetta dati,
+    // raggruppando piu' messaggi in un'unica scrittura vettoriale
+    void flush() throws IOException {
+        writeRequested.set(false);
+        if (key == null)
+            return;
+        while (true) {
+            if (batchStart == batchEnd && !fillBatch()) {
+                interest(false);
+                return;
+            }
+            channel.write(batch, batchStart, batchEnd - batchStart);
+            while (batchStart < batchEnd && !batch[batchStart].hasRemaining())
+                batch[batchStart++] = null;
+            if (batchStart < batchEnd) {
+                // socket pieno, si riprende quando torna scrivibile
+                interest(true);
+                return;
+            }
+        }
+    }
+
+    private void interest(boolean write) {
+        writeBlocked = write;
+        key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (write ? SelectionKey.OP_WRITE : 0));
+    }
+
+    private boolean fillBatch() {
+        batchStart = 0;
+        batchEnd = 0;
+        long bytes = 0;
+        while (batchEnd < batch.length && bytes < Config.WRITE_BATCH_BYTES) {
+            OutboundMessage next = handler.pollOutgoing();
+            if (next == null)
+                break;
+            batch[batchEnd++] = next.asBuffer();
+            bytes += next.size();
+        }
+        // sotto la soglia (es. risposte brevi) si scrive in chiaro per non aggiungere latenza
+        FrameDeflater deflater = handler.getDeflater();
+        if (deflater != null && batchEnd > 0 && bytes >= Config.COMPRESSION_MIN_BYTES) {
+            ByteBuffer compressed = ByteBuffer.wrap(deflater.compress(batch, 0, batchEnd));
+            Arrays.fill(batch, 0, batchEnd, null);
+            batch[0] = compressed;
+            batchEnd = 1;
+        }
+        return batchEnd > 0;
+    }
+
+    // Puo' essere chiamato da qualsiasi thread
+    public void requestWrite() {
+        if (writeRequested.compareAndSet(false, true))
+            worker.requestWrite(this);
+    }
+
+    public boolean isOpen() {
+        return !closed.get() && channel.isOpen();
+    }
+
+    public void close() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignora, il canale viene comunque rilasciato
+        }
+        if (handler != null)
+            handler.onChannelClosed();
+    }
+}
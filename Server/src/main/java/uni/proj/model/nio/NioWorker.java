@@ -0,0 +1,135 @@
+package uni.proj.model.nio;
+
+import uni.proj.model.Logger;
+import uni.proj.model.status.Error;
+import uni.proj.model.status.Info;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Thread di I/O con un proprio Selector: letture e scritture non bloccanti per le sessioni assegnate
+public class NioWorker implements Runnable {
+
+    private final String name;
+    private final Logger logger;
+    private final Selector selector;
+    private final Queue<NioSession> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<NioSession> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Queue<NioSession> pendingResumes = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = false;
+    private Thread thread;
+
+    public NioWorker(String name, Logger logger) throws IOException {
+        this.name = name;
+        this.logger = logger;
+        this.selector = Selector.open();
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void register(NioSession session) {
+        pendingRegistrations.add(session);
+        selector.wakeup();
+    }
+
+    void requestWrite(NioSession session) {
+        pendingWrites.add(session);
+        selector.wakeup();
+    }
+
+    // La sessione ha smaltito le richieste in coda e puo' tornare a leggere
+    void requestResume(NioSession session) {
+        pendingResumes.add(session);
+        selector.wakeup();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        logger.log(new Info(name + " avviato"));
+        try {
+            while (running) {
+                selector.select();
+                registerPending();
+                flushPending();
+                resumePending();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioSession session = (NioSession) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            session.onReadable();
+                        if (key.isValid() && key.isWritable())
+                            session.flush();
+                    } catch (IOException | CancelledKeyException e) {
+                        session.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.log(new Error("errore nel " + name + ": " + e.getMessage()));
+        } finally {
+            for (SelectionKey key : selector.keys())
+                ((NioSession) key.attachment()).close();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignora
+            }
+        }
+    }
+
+    private void registerPending() {
+        NioSession session;
+        while ((session = pendingRegistrations.poll()) != null) {
+            try {
+                session.register(selector);
+            } catch (IOException e) {
+                session.close();
+            }
+        }
+    }
+
+    private void resumePending() {
+        NioSession session;
+        while ((session = pendingResumes.poll()) != null) {
+            if (!session.isOpen())
+                continue;
+            try {
+                session.resume();
+            } catch (CancelledKeyException e) {
+                session.close();
+            }
+        }
+    }
+
+    private void flushPending() {
+        NioSession session;
+        while ((session = pendingWrites.poll()) != null) {
+            if (!session.isOpen())
+                continue;
+            try {
+                session.flush();
+            } catch (IOException | CancelledKeyException e) {
+                session.close();
+            }
+        }
+    }
+}
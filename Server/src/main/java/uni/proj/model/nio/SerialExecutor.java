@@ -0,0 +1,35 @@
+package uni.proj.model.nio;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+// Esegue i task uno alla volta, nell'ordine di arrivo, sul pool condiviso
+public class SerialExecutor implements Executor {
+
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private final Executor executor;
+    private Runnable active;
+
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public synchronized void execute(Runnable task) {
+        tasks.add(() -> {
+            try {
+                task.run();
+            } finally {
+                scheduleNext();
+            }
+        });
+        if (active == null)
+            scheduleNext();
+    }
+
+    private synchronized void scheduleNext() {
+        if ((active = tasks.poll()) != null)
+            executor.execute(active);
+    }
+}
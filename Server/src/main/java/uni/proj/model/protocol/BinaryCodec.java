@@ -0,0 +1,268 @@
+package uni.proj.model.protocol;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.RecordComponent;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// Codifica binaria dei messaggi, alternativa alla riga JSON e negoziata con l'handshake.
+// Frame: [MARKER][lunghezza int big endian][tipo][requestId][campi del record nell'ordine di dichiarazione].
+// Interi e long sono varint zigzag, stringhe e array hanno la lunghezza + 1 (0 = null), enum l'ordinale + 1,
+// record annidati e Long un byte di presenza. Il primo byte non puo' iniziare una riga di testo, quindi
+// chi legge distingue i due formati frame per frame.
+public class BinaryCodec {
+
+    public static final byte MARKER = 0;
+    public static final int HEADER_BYTES = 5;
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    // Componenti e costruttore canonico di un record, letti una volta sola
+    private record Layout(Method[] accessors, Class<?>[] types, Constructor<?> constructor) {}
+
+    private final ConcurrentHashMap<Class<?>, Layout> layouts = new ConcurrentHashMap<>();
+
+    // Frame completo, intestazione compresa
+    public byte[] encode(ProtocolMessage<?> message) {
+        Output out = new Output();
+        out.bytes(new byte[HEADER_BYTES], HEADER_BYTES);
+        if (message.data() == null)
+            throw new IllegalArgumentException("il messaggio " + message.type() + " non ha dati");
+        out.varint(message.type().ordinal());
+        out.zigzag(message.requestId());
+        writeRecord(out, message.data());
+        int length = out.length - HEADER_BYTES;
+        if (length > MAX_FRAME_LENGTH)
+            throw new IllegalArgumentException("messaggio troppo grande: " + length + " byte");
+        byte[] frame = out.toArray();
+        frame[0] = MARKER;
+        frame[1] = (byte) (length >>> 24);
+        frame[2] = (byte) (length >>> 16);
+        frame[3] = (byte) (length >>> 8);
+        frame[4] = (byte) length;
+        return frame;
+    }
+
+    // Corpo del frame senza intestazione; dataClass da' la classe dei dati per il tipo letto
+    public ProtocolMessage<?> decode(byte[] payload, Function<MessageType, Class<?>> dataClass) {
+        Input in = new Input(payload);
+        try {
+            int ordinal = (int) in.varint();
+            MessageType[] types = MessageType.values();
+            if (ordinal < 0 || ordinal >= types.length)
+                throw new IllegalArgumentException("tipo di messaggio sconosciuto: " + ordinal);
+            MessageType type = types[ordinal];
+            long requestId = in.zigzag();
+            Object data = readRecord(in, dataClass.apply(type));
+            if (in.position != payload.length)
+                throw new IllegalArgumentException("byte in eccesso nel frame");
+            return new ProtocolMessage<>(type, data, requestId);
+        } catch (ArrayIndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IllegalArgumentException("frame binario troncato", e);
+        }
+    }
+
+    private void writeRecord(Output out, Object record) {
+        Layout layout = layout(record.getClass());
+        for (int i = 0; i < layout.accessors.length; i++)
+            writeValue(out, layout.types[i], invoke(layout.accessors[i], record));
+    }
+
+    private Object readRecord(Input in, Class<?> type) {
+        Layout layout = layout(type);
+        Object[] values = new Object[layout.types.length];
+        for (int i = 0; i < values.length; i++)
+            values[i] = readValue(in, layout.types[i]);
+        try {
+            return layout.constructor.newInstance(values);
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalArgumentException("impossibile costruire " + type.getSimpleName(), e);
+        }
+    }
+
+    private void writeValue(Output out, Class<?> type, Object value) {
+        if (type == long.class || type == int.class) {
+            out.zigzag(((Number) value).longValue());
+        } else if (type == boolean.class) {
+            out.write((Boolean) value ? 1 : 0);
+        } else if (type == Long.class) {
+            out.write(value == null ? 0 : 1);
+            if (value != null)
+                out.zigzag((Long) value);
+        } else if (type == String.class) {
+            if (value == null) {
+                out.varint(0);
+                return;
+            }
+            byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+            out.varint(bytes.length + 1L);
+            out.bytes(bytes, bytes.length);
+        } else if (type.isEnum()) {
+            out.varint(value == null ? 0 : ((Enum<?>) value).ordinal() + 1L);
+        } else if (type.isArray()) {
+            if (value == null) {
+                out.varint(0);
+                return;
+            }
+            int length = Array.getLength(value);
+            out.varint(length + 1L);
+            for (int i = 0; i < length; i++)
+                writeValue(out, type.getComponentType(), Array.get(value, i));
+        } else if (type.isRecord()) {
+            out.write(value == null ? 0 : 1);
+            if (value != null)
+                writeRecord(out, value);
+        } else {
+            throw new IllegalArgumentException("tipo di campo non supportato: " + type.getName());
+        }
+    }
+
+    private Object readValue(Input in, Class<?> type) {
+        if (type == long.class)
+            return in.zigzag();
+        if (type == int.class)
+            return (int) in.zigzag();
+        if (type == boolean.class)
+            return in.read() != 0;
+        if (type == Long.class)
+            return in.read() == 0 ? null : in.zigzag();
+        if (type == String.class) {
+            int length = in.length();
+            return length < 0 ? null : in.string(length);
+        }
+        if (type.isEnum()) {
+            int ordinal = (int) in.varint();
+            Object[] constants = type.getEnumConstants();
+            if (ordinal < 0 || ordinal > constants.length)
+                throw new IllegalArgumentException("valore sconosciuto per " + type.getSimpleName() + ": " + ordinal);
+            return ordinal == 0 ? null : constants[ordinal - 1];
+        }
+        if (type.isArray()) {
+            int length = in.length();
+            if (length < 0)
+                return null;
+            Object array = Array.newInstance(type.getComponentType(), length);
+            for (int i = 0; i < length; i++)
+                Array.set(array, i, readValue(in, type.getComponentType()));
+            return array;
+        }
+        if (type.isRecord())
+            return in.read() == 0 ? null : readRecord(in, type);
+        throw new IllegalArgumentException("tipo di campo non supportato: " + type.getName());
+    }
+
+    private Layout layout(Class<?> type) {
+        return layouts.computeIfAbsent(type, key -> {
+            if (!key.isRecord())
+                throw new IllegalArgumentException("non e' un record: " + key.getName());
+            RecordComponent[] components = key.getRecordComponents();
+            Method[] accessors = new Method[components.length];
+            Class<?>[] types = new Class<?>[components.length];
+            for (int i = 0; i < components.length; i++) {
+                accessors[i] = components[i].getAccessor();
+                types[i] = components[i].getType();
+            }
+            try {
+                return new Layout(accessors, types, key.getDeclaredConstructor(types));
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("costruttore canonico mancante: " + key.getName(), e);
+            }
+        });
+    }
+
+    private static Object invoke(Method accessor, Object record) {
+        try {
+            return accessor.invoke(record);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalArgumentException("campo non leggibile: " + accessor.getName(), e);
+        }
+    }
+
+    private static final class Output {
+        private byte[] buffer = new byte[256];
+        private int length;
+
+        void write(int b) {
+            ensure(1);
+            buffer[length++] = (byte) b;
+        }
+
+        void bytes(byte[] bytes, int count) {
+            ensure(count);
+            System.arraycopy(bytes, 0, buffer, length, count);
+            length += count;
+        }
+
+        void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        void zigzag(long value) {
+            varint((value << 1) ^ (value >> 63));
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(buffer, length);
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    private static final class Input {
+        private final byte[] buffer;
+        private int position;
+
+        Input(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        int read() {
+            return buffer[position++] & 0xFF;
+        }
+
+        long varint() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (shift > 63)
+                    throw new IllegalArgumentException("varint non valido");
+                b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        long zigzag() {
+            long value = varint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        // lunghezza di stringa o array, -1 per null
+        int length() {
+            long value = varint() - 1;
+            if (value < -1 || value > buffer.length - position)
+                throw new IllegalArgumentException("lunghezza oltre la fine del frame: " + value);
+            return (int) value;
+        }
+
+        String string(int length) {
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
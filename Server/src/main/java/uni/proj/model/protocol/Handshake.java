@@ -0,0 +1,29 @@
+package uni.proj.model.protocol;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// Riga di testo scambiata all'inizio della connessione: il client elenca le funzionalita' che supporta
+// ("HELLO binary deflate"), il server risponde con quelle che accetta. Un client che non la invia parla JSON.
+public final class Handshake {
+
+    public static final String PREFIX = "HELLO";
+    public static final String BINARY = "binary";
+    public static final String DEFLATE = "deflate";
+
+    private Handshake() {}
+
+    public static String line(Set<String> features) {
+        return features.isEmpty() ? PREFIX : PREFIX + " " + String.join(" ", features);
+    }
+
+    // Funzionalita' elencate nella riga, null se la riga non e' un handshake
+    public static Set<String> parse(String line) {
+        if (line == null || !(line.equals(PREFIX) || line.startsWith(PREFIX + " ")))
+            return null;
+        Set<String> features = new LinkedHashSet<>(Arrays.asList(line.substring(PREFIX.length()).trim().split("\\s+")));
+        features.remove("");
+        return features;
+    }
+}
@@ -1,16 +1,42 @@
 package uni.proj.model.protocol;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonObject;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.Strictness;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import uni.proj.model.protocol.data.*;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+// Codifica JSON a una riga per messaggio: {"type":...,"data":{...},"requestId":...}, requestId solo se presente. Gli adapter di Gson per ogni tipo di
+// dati sono presi una volta sola e il messaggio viene letto e scritto in streaming, senza albero intermedio;
+// l'output e' identico a quello di gson.toJson sul ProtocolMessage.
 public class ProtocolHandler {
     private final Gson gson = new Gson();
+    private final BinaryCodec binaryCodec = new BinaryCodec();
+    private final TypeAdapter<MessageType> typeAdapter = gson.getAdapter(MessageType.class);
+    private final Map<Class<?>, TypeAdapter<Object>> adapters = new HashMap<>();
+    private final EnumMap<MessageType, TypeAdapter<Object>> adaptersByType = new EnumMap<>(MessageType.class);
+
+    // Inizio delle righe che si compongono o si ritagliano a livello di byte (sendMailData, encodeMailBatch):
+    // sono quelli scritti da encode(), che mette sempre type e data per primi
+    private static final byte[] SEND_MAIL_HEAD = "{\"type\":\"SEND_MAIL\",\"data\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MAIL_BATCH_HEAD = "{\"type\":\"MAIL_BATCH\",\"data\":{\"mails\":[".getBytes(StandardCharsets.UTF_8);
 
     private static final Set<Class<?>> allowedDataTypes = Set.of(
             LoginData.class,
@@ -22,36 +48,149 @@ public class ProtocolHandler {
             ResponseData.class,
             GetInboxData.class,
             ForwardData.class,
-            DeleteData.class
+            DeleteData.class,
+            InboxPageData.class,
+            GetChangesData.class,
+            ChangesData.class,
+            SearchData.class,
+            SearchResultData.class,
+            MailBatchData.class
     );
 
+    @SuppressWarnings("unchecked")
+    public ProtocolHandler() {
+        for (Class<?> dataClass : allowedDataTypes)
+            adapters.put(dataClass, (TypeAdapter<Object>) gson.getAdapter(dataClass));
+        for (MessageType type : MessageType.values())
+            adaptersByType.put(type, adapters.get(getDataClassForType(type)));
+    }
+
     public String encode(ProtocolMessage<?> message, Class<?> dataClass) {
-        if (!allowedDataTypes.contains(dataClass)) {
+        TypeAdapter<Object> adapter = adapters.get(dataClass);
+        if (adapter == null) {
             throw new IllegalArgumentException("Tipo non supportato per encode: " + dataClass.getName());
         }
 
-        Type type = TypeToken.getParameterized(ProtocolMessage.class, dataClass).getType();
-        return gson.toJson(message, type);
+        StringWriter out = new StringWriter(128);
+        try (JsonWriter writer = gson.newJsonWriter(out)) {
+            writer.beginObject();
+            if (message.type() != null) {
+                writer.name("type");
+                typeAdapter.write(writer, message.type());
+            }
+            if (message.data() != null) {
+                writer.name("data");
+                adapter.write(writer, message.data());
+            }
+            if (message.requestId() != 0)
+                writer.name("requestId").value(message.requestId());
+            writer.endObject();
+        } catch (IOException e) {
+            // uno StringWriter non fallisce
+            throw new JsonIOException(e);
+        }
+        return out.toString();
+    }
+
+    // I dati (l'oggetto SendMailData) di una riga SEND_MAIL scritta da encode() senza requestId e seguita
+    // da '\n', come una porzione della riga stessa: niente copie e niente decodifica. La riga deve finire con "}}\n"
+    // (fine dei dati e del messaggio), altrimenti ha altri campi dopo i dati
+    public ByteBuffer sendMailData(ByteBuffer line) {
+        int start = line.position();
+        int length = line.remaining() - SEND_MAIL_HEAD.length - 2;
+        if (length <= 0
+                || !line.slice(start, SEND_MAIL_HEAD.length).equals(ByteBuffer.wrap(SEND_MAIL_HEAD))
+                || line.get(line.limit() - 3) != '}' || line.get(line.limit() - 2) != '}' || line.get(line.limit() - 1) != '\n')
+            throw new IllegalArgumentException("non e' una riga SEND_MAIL");
+        return line.slice(start + SEND_MAIL_HEAD.length, length);
+    }
+
+    // Riga MAIL_BATCH (seguita da '\n') composta dai dati delle mail gia' in JSON, ad esempio ritagliati con
+    // sendMailData: si copiano i byte senza decodificarli. Il risultato e' quello di encode() su MailBatchData
+    public ByteBuffer encodeMailBatch(List<ByteBuffer> mails, long[] ids, long requestId) {
+        StringBuilder tail = new StringBuilder("],\"ids\":[");
+        for (int i = 0; i < ids.length; i++)
+            tail.append(i > 0 ? "," : "").append(ids[i]);
+        tail.append("]}");
+        if (requestId != 0)
+            tail.append(",\"requestId\":").append(requestId);
+        byte[] tailBytes = tail.append("}\n").toString().getBytes(StandardCharsets.UTF_8);
+        int size = MAIL_BATCH_HEAD.length + Math.max(0, mails.size() - 1) + tailBytes.length;
+        for (ByteBuffer mail : mails)
+            size += mail.remaining();
+        ByteBuffer line = ByteBuffer.allocate(size);
+        line.put(MAIL_BATCH_HEAD);
+        for (int i = 0; i < mails.size(); i++) {
+            if (i > 0)
+                line.put((byte) ',');
+            line.put(mails.get(i).duplicate());
+        }
+        return line.put(tailBytes).flip();
     }
 
+    // Una sola passata: se "data" arriva prima di "type" lo si tiene come albero e lo si converte dopo
     public ProtocolMessage<?> decode(String json) throws JsonSyntaxException  {
-        JsonObject jsonObject = gson.fromJson(json, JsonObject.class);
-        MessageType type = gson.fromJson(jsonObject.get("type"), MessageType.class);
-        if(type == null)
-            throw new JsonSyntaxException("Errore durante la verifica del tipo");
+        try (JsonReader reader = gson.newJsonReader(new StringReader(json))) {
+            // come gson.fromJson
+            reader.setStrictness(Strictness.LENIENT);
+            MessageType type = null;
+            Object data = null;
+            JsonElement pendingData = null;
+            boolean hasData = false;
+            long requestId = 0;
 
-        Class<?> dataClass = getDataClassForType(type);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "type" -> type = typeAdapter.read(reader);
+                    case "data" -> {
+                        hasData = true;
+                        if (type != null) {
+                            data = adaptersByType.get(type).read(reader);
+                        } else {
+                            pendingData = JsonParser.parseReader(reader);
+                            data = null;
+                        }
+                    }
+                    case "requestId" -> requestId = reader.nextLong();
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (reader.peek() != JsonToken.END_DOCUMENT)
+                throw new JsonSyntaxException("Errore, il messaggio contiene dati dopo l'oggetto");
 
-        if(jsonObject.get("data") == null)
-            throw new JsonSyntaxException("Errore, l'oggetto non contiene il campo data");
+            if(type == null)
+                throw new JsonSyntaxException("Errore durante la verifica del tipo");
 
-        Object data = gson.fromJson(jsonObject.get("data"), dataClass);
+            if(!hasData)
+                throw new JsonSyntaxException("Errore, l'oggetto non contiene il campo data");
 
-        if(data == null)
-            throw new JsonSyntaxException("Errore, l'oggetto data non può contenere null");
+            if (pendingData != null)
+                data = adaptersByType.get(type).fromJsonTree(pendingData);
 
+            if(data == null)
+                throw new JsonSyntaxException("Errore, l'oggetto data non può contenere null");
+
+
+            return new ProtocolMessage<>(type, data, requestId);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    // Frame binario completo (vedi BinaryCodec), per le connessioni che lo hanno negoziato
+    public byte[] encodeBinary(ProtocolMessage<?> message) {
+        if (message.data() != null && !allowedDataTypes.contains(message.data().getClass())) {
+            throw new IllegalArgumentException("Tipo non supportato per encode: " + message.data().getClass().getName());
+        }
+
+        return binaryCodec.encode(message);
+    }
 
-        return new ProtocolMessage<>(type, data);
+    // Corpo di un frame binario, senza intestazione
+    public ProtocolMessage<?> decodeBinary(byte[] payload) throws IllegalArgumentException {
+        return binaryCodec.decode(payload, this::getDataClassForType);
     }
 
     public Class<?> getDataClassForType(MessageType type) {
@@ -66,6 +205,12 @@ public class ProtocolHandler {
             case GET_INBOX -> GetInboxData.class;
             case FORWARD -> ForwardData.class;
             case DELETE -> DeleteData.class;
+            case INBOX_PAGE -> InboxPageData.class;
+            case GET_CHANGES -> GetChangesData.class;
+            case CHANGES -> ChangesData.class;
+            case SEARCH -> SearchData.class;
+            case SEARCH_RESULT -> SearchResultData.class;
+            case MAIL_BATCH -> MailBatchData.class;
         };
     }
 
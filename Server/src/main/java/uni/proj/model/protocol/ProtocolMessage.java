@@ -1,4 +1,10 @@
 package uni.proj.model.protocol;
 
-public record ProtocolMessage<T>(MessageType type, T data) {
-}
\ No newline at end of file
+// requestId: scelto dal client per ogni richiesta e ripetuto dal server nella risposta che la chiude
+// (0 = nessuna richiesta, es. mail consegnate o notifiche)
+public record ProtocolMessage<T>(MessageType type, T data, long requestId) {
+
+    public ProtocolMessage(MessageType type, T data) {
+        this(type, data, 0);
+    }
+}
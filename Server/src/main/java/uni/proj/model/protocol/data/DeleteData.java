@@ -1,4 +1,10 @@
 package uni.proj.model.protocol.data;
 
-public record DeleteData(SendMailData mail) {
+// Richiesta del client: la mail da cancellare (id 0). Dal server, nelle modifiche di GET_CHANGES:
+// id e' l'id nell'archivio della mail cancellata e mail la sua versione attuale
+public record DeleteData(SendMailData mail, long id) {
+
+    public DeleteData(SendMailData mail) {
+        this(mail, 0);
+    }
 }
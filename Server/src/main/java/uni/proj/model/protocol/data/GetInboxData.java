@@ -1,4 +1,6 @@
 package uni.proj.model.protocol.data;
 
-public record GetInboxData(String email) {
+// pageSize 0: tutta l'inbox (client precedenti); altrimenti una pagina, dalla piu' recente, a partire da cursor
+// (null per la prima pagina)
+public record GetInboxData(String email, String cursor, int pageSize) {
 }
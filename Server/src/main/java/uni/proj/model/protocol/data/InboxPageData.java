@@ -0,0 +1,7 @@
+package uni.proj.model.protocol.data;
+
+// Chiude una pagina di GET_INBOX, le cui mail sono arrivate prima in uno o piu' MAIL_BATCH.
+// nextCursor e' null quando non ci sono mail piu' vecchie; sequence e' la sequenza della mailbox
+// al momento della lettura, da usare poi con GET_CHANGES
+public record InboxPageData(String nextCursor, int count, long sequence) {
+}
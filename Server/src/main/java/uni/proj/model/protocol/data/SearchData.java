@@ -0,0 +1,8 @@
+package uni.proj.model.protocol.data;
+
+// Filtri di ricerca nell'inbox di email; quelli null non si applicano.
+// title e' una parte del titolo (senza distinzione tra maiuscole e minuscole), from e to sono
+// istanti di consegna in millisecondi (epoch), estremi inclusi. text: parole da cercare nel corpo (tutte),
+// con text i risultati sono ordinati per rilevanza
+public record SearchData(String email, String sender, String recipient, String title, Long from, Long to, String text) {
+}
@@ -0,0 +1,6 @@
+package uni.proj.model.protocol.data;
+
+// Risultato di SEARCH dalla mail piu' recente; deliveredAt[i] e' l'istante di consegna di mails[i]
+// (0 se sconosciuto). truncated: c'erano altri risultati oltre il massimo del server
+public record SearchResultData(SendMailData[] mails, long[] deliveredAt, boolean truncated) {
+}
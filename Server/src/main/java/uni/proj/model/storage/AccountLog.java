@@ -0,0 +1,232 @@
+package uni.proj.model.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import uni.proj.model.SessionRegistry;
+import uni.proj.model.protocol.data.RegisterData;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Registro degli indirizzi su disco: uno snapshot (emails.json, lo stesso formato di prima) piu' un log
+// append-only in formato Records con le registrazioni successive. Una registrazione costa un append;
+// le registrazioni concorrenti finiscono nella stessa scrittura. Lo snapshot viene riscritto solo dal
+// checkpoint, quando il log ha superato la soglia, e a quel punto il log si svuota.
+// La durabilita' la garantisce il WAL: il log viene forzato su disco solo dal checkpoint.
+public class AccountLog {
+
+    // Registrazione in attesa di essere scritta dal thread che guida il gruppo
+    private static final class Pending {
+        final byte[] record;
+        boolean written;
+        IOException failure;
+
+        Pending(byte[] record) {
+            this.record = record;
+        }
+    }
+
+    private static final Type LIST_TYPE = new TypeToken<List<RegisterData>>(){}.getType();
+
+    private final Path snapshot;
+    private final Path log;
+    private final Gson gson = new Gson();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition writtenCondition = lock.newCondition();
+    private List<Pending> queue = new ArrayList<>();
+    private boolean writing;
+    private FileChannel channel;
+    private long end;
+    private long entries;
+
+    public AccountLog(Path snapshot, Path log) {
+        this.snapshot = snapshot;
+        this.log = log;
+    }
+
+    // Snapshot seguito dalle registrazioni del log (possono ripetere indirizzi gia' nello snapshot se il
+    // checkpoint si e' interrotto prima di svuotare il log: i duplicati li scarta AccountRegistry)
+    public List<RegisterData> load() throws IOException {
+        lock.lock();
+        try {
+            List<RegisterData> registers = readSnapshot();
+            Files.createDirectories(log.toAbsolutePath().getParent());
+            channel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            byte[] content = Files.readAllBytes(log);
+            entries = 0;
+            int valid = Records.forEach(content, (id, offset, length) -> {
+                try {
+                    RegisterData data = gson.fromJson(Records.payload(content, offset, length), RegisterData.class);
+                    if (data != null && data.email() != null) {
+                        registers.add(data);
+                        entries++;
+                    }
+                } catch (JsonParseException e) {
+                    // voce illeggibile: si prosegue con le successive
+                }
+            });
+            if (valid < content.length)
+                channel.truncate(valid);
+            end = valid;
+            return registers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Accoda la registrazione e ritorna quando e' stata scritta nel log. Il primo thread che trova la coda
+    // libera scrive con una sola write tutto quello che si e' accumulato, gli altri aspettano il proprio turno.
+    public void append(RegisterData data) throws IOException {
+        Pending pending = new Pending(Records.frame(0, gson.toJson(data)));
+        List<Pending> batch;
+        lock.lock();
+        try {
+            queue.add(pending);
+            while (writing && !pending.written)
+                writtenCondition.await();
+            if (pending.written) {
+                if (pending.failure != null)
+                    throw pending.failure;
+                return;
+            }
+            writing = true;
+            batch = queue;
+            queue = new ArrayList<>();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("attesa della scrittura del registro interrotta");
+        } finally {
+            lock.unlock();
+        }
+        IOException failure = null;
+        long written = 0;
+        try {
+            written = write(batch);
+        } catch (IOException e) {
+            failure = e;
+        }
+        lock.lock();
+        try {
+            end += written;
+            if (failure == null)
+                entries += batch.size();
+            for (Pending done : batch) {
+                done.written = true;
+                done.failure = failure;
+            }
+            writing = false;
+            writtenCondition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    public long entries() {
+        lock.lock();
+        try {
+            return entries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Checkpoint: rende durevole il log e, se ha almeno minEntries voci, lo fonde nello snapshot.
+    // Il chiamante esclude le registrazioni concorrenti (lock del checkpoint in scrittura).
+    public void checkpoint(long minEntries) throws IOException {
+        lock.lock();
+        try {
+            if (channel == null)
+                return;
+            while (writing)
+                writtenCondition.awaitUninterruptibly();
+            channel.force(false);
+            if (entries == 0 || entries < minEntries)
+                return;
+            List<RegisterData> registers = readSnapshot();
+            byte[] content = Files.readAllBytes(log);
+            Records.forEach(content, (id, offset, length) -> {
+                try {
+                    RegisterData data = gson.fromJson(Records.payload(content, offset, length), RegisterData.class);
+                    if (data != null && data.email() != null)
+                        registers.add(data);
+                } catch (JsonParseException e) {
+                    // voce illeggibile: gia' ignorata al caricamento
+                }
+            });
+            writeSnapshot(registers);
+            // un crash qui lascia nel log voci gia' nello snapshot: al riavvio sono duplicati innocui
+            channel.truncate(0);
+            channel.force(true);
+            end = 0;
+            entries = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long write(List<Pending> batch) throws IOException {
+        int size = 0;
+        for (Pending pending : batch)
+            size += pending.record.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Pending pending : batch)
+            buffer.put(pending.record);
+        buffer.flip();
+        // end cambia solo qui e nel checkpoint, entrambi esclusivi rispetto a questa scrittura
+        long position = end;
+        while (buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position());
+        return size;
+    }
+
+    private List<RegisterData> readSnapshot() throws IOException {
+        List<RegisterData> registers = new ArrayList<>();
+        if (!Files.exists(snapshot))
+            return registers;
+        try (Reader reader = Files.newBufferedReader(snapshot, StandardCharsets.UTF_8)) {
+            List<RegisterData> saved = gson.fromJson(reader, LIST_TYPE);
+            if (saved != null)
+                registers.addAll(saved);
+        } catch (JsonParseException e) {
+            throw new IOException("snapshot del registro non valido: " + e.getMessage(), e);
+        }
+        return registers;
+    }
+
+    // Senza duplicati, su file temporaneo e rename: un crash lascia lo snapshot precedente
+    private void writeSnapshot(List<RegisterData> registers) throws IOException {
+        List<RegisterData> unique = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (RegisterData data : registers) {
+            if (seen.add(SessionRegistry.canonical(data.email())))
+                unique.add(data);
+        }
+        Path temp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            gson.toJson(unique, writer);
+        }
+        try (FileChannel tempChannel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            tempChannel.force(true);
+        }
+        Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,64 @@
+package uni.proj.model.storage;
+
+// Count-min sketch con contatori saturati a 15 e invecchiamento periodico (dimezzamento),
+// stima quante volte una chiave e' stata richiesta di recente. Non sincronizzato.
+class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final int[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int expectedKeys) {
+        int width = Integer.highestOneBit(Math.max(64, expectedKeys - 1) << 1);
+        table = new int[DEPTH][width];
+        mask = width - 1;
+        sampleSize = 10 * width;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(hash, i);
+            if (table[i][index] < MAX_COUNT) {
+                table[i][index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize)
+            age();
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++)
+            min = Math.min(min, table[i][indexOf(hash, i)]);
+        return min;
+    }
+
+    // le frequenze vecchie pesano la meta': la cache segue i cambi di abitudini degli utenti
+    private void age() {
+        for (int[] row : table) {
+            for (int j = 0; j < row.length; j++)
+                row[j] >>>= 1;
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9E3779B1;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xED5AD4BB;
+        return hash ^ (hash >>> 11);
+    }
+}
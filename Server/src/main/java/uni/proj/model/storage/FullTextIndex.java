@@ -0,0 +1,246 @@
+package uni.proj.model.storage;
+
+import uni.proj.model.Logger;
+import uni.proj.model.MailboxLocks;
+import uni.proj.model.protocol.data.SendMailData;
+import uni.proj.model.status.Warning;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Ricerca nel corpo delle mail: un TextIndex per mailbox, salvato accanto alla mailbox (.fts).
+// In memoria restano solo gli indici usati di recente; uno appena caricato recupera le modifiche della
+// mailbox successive alla sequenza salvata, quindi un indice scartato senza salvarlo non perde nulla.
+// onAppend, onRemove e search vanno chiamati tenendo il lock della mailbox.
+public class FullTextIndex {
+
+    private static final String EXTENSION = ".fts";
+
+    private final MailboxStore store;
+    private final MessageStore messages;
+    private final MailboxLocks locks;
+    private final Logger logger;
+    private final int saveEvery;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, TextIndex> loaded;
+
+    public FullTextIndex(MailboxStore store, MessageStore messages, MailboxLocks locks, Logger logger, int maxLoaded, int saveEvery) {
+        this.store = store;
+        this.messages = messages;
+        this.locks = locks;
+        this.logger = logger;
+        this.saveEvery = saveEvery;
+        this.loaded = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TextIndex> eldest) {
+                return size() > maxLoaded;
+            }
+        };
+    }
+
+    // Nuovo riferimento nella mailbox (gia' scritto, con la sequenza assegnata)
+    public void onAppend(String email, MailboxRef ref, String body) {
+        TextIndex index = loadedIndex(email);
+        if (index == null)
+            return;
+        if (!follows(email, index, ref))
+            return;
+        index.add(ref.id(), body);
+        index.sequence(ref.seq());
+        maybeSave(email, index);
+    }
+
+    // Tombstone scritto; stillLive se la mailbox ha ancora un altro riferimento allo stesso messaggio
+    public void onRemove(String email, MailboxRef tombstone, String body, boolean stillLive) {
+        TextIndex index = loadedIndex(email);
+        if (index == null)
+            return;
+        if (!follows(email, index, tombstone))
+            return;
+        if (!stillLive)
+            index.remove(tombstone.id(), body);
+        index.sequence(tombstone.seq());
+        maybeSave(email, index);
+    }
+
+    // Id dei messaggi che contengono tutti i termini, dal piu' rilevante
+    public List<Long> search(String email, String query) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        for (TextIndex.Hit hit : acquire(email).search(query))
+            ids.add(hit.id());
+        return ids;
+    }
+
+    // Ricostruisce da zero gli indici di tutte le mailbox usando threads thread; restituisce quanti ne ha scritti
+    public int rebuildAll(int threads) throws IOException {
+        return rebuild(store.mailboxes(), threads);
+    }
+
+    // Come rebuildAll ma solo per le mailbox senza indice su disco (es. dati precedenti all'indice)
+    public int rebuildMissing(int threads) throws IOException {
+        List<String> missing = new ArrayList<>();
+        for (String email : store.mailboxes()) {
+            if (!Files.exists(store.pathFor(email, EXTENSION)))
+                missing.add(email);
+        }
+        return rebuild(missing, threads);
+    }
+
+    private int rebuild(List<String> emails, int threads) throws IOException {
+        if (emails.isEmpty())
+            return 0;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, emails.size()));
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (String email : emails)
+                tasks.add(() -> {
+                    rebuild(email);
+                    return null;
+                });
+            int built = 0;
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                try {
+                    result.get();
+                    built++;
+                } catch (ExecutionException e) {
+                    logger.log(new Warning("Indice del testo non ricostruito: " + e.getCause().getMessage()));
+                }
+            }
+            return built;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("ricostruzione degli indici interrotta", e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Il lock della mailbox serve solo per leggere riferimenti e sequenza insieme e per sostituire il file:
+    // la lettura dei corpi e la tokenizzazione avvengono senza lock
+    private void rebuild(String email) throws IOException {
+        List<MailboxRef> refs;
+        long sequence;
+        try (MailboxLocks.Held held = locks.lock(email)) {
+            refs = store.readAll(email);
+            sequence = store.lastSequence(email);
+        }
+        TextIndex index = build(refs, sequence);
+        try (MailboxLocks.Held held = locks.lock(email)) {
+            index.save(store.pathFor(email, EXTENSION));
+            // l'indice in memoria va ricaricato dal file appena scritto (recuperando le modifiche intanto arrivate)
+            lock.lock();
+            try {
+                loaded.remove(email);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private TextIndex build(List<MailboxRef> refs, long sequence) throws IOException {
+        TextIndex index = new TextIndex();
+        for (MailboxRef ref : refs) {
+            SendMailData mail = messages.get(ref.id());
+            if (mail != null)
+                index.add(ref.id(), mail.body());
+        }
+        index.sequence(sequence);
+        return index;
+    }
+
+    // Indice in memoria, caricato dal disco (o costruito) e aggiornato alle ultime modifiche della mailbox
+    private TextIndex acquire(String email) throws IOException {
+        TextIndex index = loadedIndex(email);
+        if (index != null)
+            return index;
+        Path file = store.pathFor(email, EXTENSION);
+        if (Files.exists(file)) {
+            try {
+                index = TextIndex.load(file);
+            } catch (IOException e) {
+                logger.log(new Warning("Indice del testo di " + email + " illeggibile, viene ricostruito: " + e.getMessage()));
+            }
+        }
+        if (index == null || !catchUp(email, index))
+            index = build(store.readAll(email), store.lastSequence(email));
+        maybeSave(email, index);
+        lock.lock();
+        try {
+            loaded.put(email, index);
+        } finally {
+            lock.unlock();
+        }
+        return index;
+    }
+
+    // Applica le modifiche della mailbox successive alla sequenza dell'indice; false se non sono piu' disponibili
+    private boolean catchUp(String email, TextIndex index) throws IOException {
+        MailboxChanges changes = store.changesSince(email, index.sequence());
+        if (!changes.complete())
+            return false;
+        Set<Long> live = null;
+        for (MailboxRef ref : changes.records()) {
+            SendMailData mail = messages.get(ref.id());
+            if (mail == null)
+                continue;
+            if (!ref.isTombstone()) {
+                index.add(ref.id(), mail.body());
+                continue;
+            }
+            if (live == null) {
+                live = new HashSet<>();
+                for (MailboxRef liveRef : store.readAll(email))
+                    live.add(liveRef.id());
+            }
+            if (!live.contains(ref.id()))
+                index.remove(ref.id(), mail.body());
+        }
+        index.sequence(changes.sequence());
+        return true;
+    }
+
+    // Un record non consecutivo vuol dire che l'indice ha perso una modifica: lo si scarta e verra' ricaricato
+    private boolean follows(String email, TextIndex index, MailboxRef ref) {
+        if (ref.seq() == index.sequence() + 1)
+            return true;
+        lock.lock();
+        try {
+            loaded.remove(email);
+        } finally {
+            lock.unlock();
+        }
+        return false;
+    }
+
+    private TextIndex loadedIndex(String email) {
+        lock.lock();
+        try {
+            return loaded.get(email);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void maybeSave(String email, TextIndex index) {
+        if (index.unsaved() < saveEvery)
+            return;
+        try {
+            index.save(store.pathFor(email, EXTENSION));
+        } catch (IOException e) {
+            logger.log(new Warning("Indice del testo di " + email + " non salvato: " + e.getMessage()));
+        }
+    }
+}
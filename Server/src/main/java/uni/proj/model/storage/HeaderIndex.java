@@ -0,0 +1,104 @@
+package uni.proj.model.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import uni.proj.model.MailboxLocks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Indice delle intestazioni per mailbox, accanto al file della mailbox (.headers) in formato Records con
+// id = id del messaggio. Solo append: una riga successiva per lo stesso messaggio lo aggiorna (forward).
+// Le intestazioni delle mail cancellate restano finche' MailboxCompactor non compatta la mailbox (retain):
+// chi cerca parte comunque dai riferimenti vivi della mailbox.
+// Ha lock propri, tenuti solo durante l'accesso al file: si puo' usare anche senza il lock della mailbox.
+public class HeaderIndex {
+
+    private static final String EXTENSION = ".headers";
+
+    private final MailboxStore store;
+    private final Gson gson = new Gson();
+    private final MailboxLocks locks;
+
+    public HeaderIndex(MailboxStore store, int lockStripes) {
+        this.store = store;
+        this.locks = new MailboxLocks(lockStripes);
+    }
+
+    public void add(String email, MailHeader header) throws IOException {
+        byte[] record = Records.frame(header.id(), gson.toJson(header));
+        try (MailboxLocks.Held held = locks.lock(email);
+             FileChannel channel = FileChannel.open(store.pathFor(email, EXTENSION), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            ByteBuffer buffer;
+            if (size > 0 && !endsWithNewline(channel, size)) {
+                // riga interrotta da un crash: la si chiude, verra' scartata in lettura
+                buffer = ByteBuffer.allocate(record.length + 1).put((byte) '\n').put(record).flip();
+            } else {
+                buffer = ByteBuffer.wrap(record);
+            }
+            while (buffer.hasRemaining())
+                channel.write(buffer, size + buffer.position());
+        }
+    }
+
+    // Intestazioni indicizzate per id del messaggio (versione piu' recente)
+    public Map<Long, MailHeader> load(String email) throws IOException {
+        Path file = store.pathFor(email, EXTENSION);
+        byte[] content;
+        try (MailboxLocks.Held held = locks.lock(email)) {
+            if (!Files.exists(file))
+                return new HashMap<>();
+            content = Files.readAllBytes(file);
+        }
+        Map<Long, MailHeader> headers = new HashMap<>();
+        Records.forEach(content, (id, offset, length) -> {
+            try {
+                MailHeader header = gson.fromJson(Records.payload(content, offset, length), MailHeader.class);
+                if (header == null)
+                    return;
+                MailHeader previous = headers.get(id);
+                if (header.time() == MailHeader.KEEP_TIME)
+                    header = new MailHeader(id, previous == null ? 0 : previous.time(), header.sender(), header.title(), header.receivers());
+                headers.put(id, header);
+            } catch (JsonParseException e) {
+                // riga non valida: l'intestazione verra' ricostruita alla prossima ricerca
+            }
+        });
+        return headers;
+    }
+
+    // Riscrive l'indice tenendo solo i messaggi indicati (quelli ancora vivi nella mailbox)
+    public void retain(String email, Set<Long> ids) throws IOException {
+        Path file = store.pathFor(email, EXTENSION);
+        Path temp = file.resolveSibling(file.getFileName() + ".compact");
+        try (MailboxLocks.Held held = locks.lock(email)) {
+            Map<Long, MailHeader> headers = load(email);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (MailHeader header : headers.values()) {
+                    if (!ids.contains(header.id()))
+                        continue;
+                    ByteBuffer buffer = ByteBuffer.wrap(Records.frame(header.id(), gson.toJson(header)));
+                    while (buffer.hasRemaining())
+                        channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static boolean endsWithNewline(FileChannel channel, long size) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        channel.read(last, size - 1);
+        return last.get(0) == '\n';
+    }
+}
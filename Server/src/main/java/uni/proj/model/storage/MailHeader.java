@@ -0,0 +1,9 @@
+package uni.proj.model.storage;
+
+// Intestazione di una mail in una mailbox, tutto cio' che serve alla ricerca senza leggere il corpo.
+// time e' l'istante di consegna nella mailbox (0 se sconosciuto, es. mail consegnate prima dell'indice)
+public record MailHeader(long id, long time, String sender, String title, String[] receivers) {
+
+    // in un aggiornamento (forward) indica di mantenere l'istante di consegna gia' indicizzato
+    public static final long KEEP_TIME = -1;
+}
@@ -0,0 +1,268 @@
+package uni.proj.model.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Cache delle inbox gia' lette (riferimenti vivi + intestazioni delle mail) per indirizzo, limitata in byte stimati.
+// I corpi non ci stanno: chi ne ha bisogno li legge dal MessageStore solo per le mail che gli servono.
+// Eviction W-TinyLFU: le nuove voci entrano in una piccola finestra LRU (1%); quando ne escono entrano nella
+// parte principale solo se richieste piu' spesso della vittima LRU, secondo un FrequencySketch.
+// Le consegne, i forward e le cancellazioni la aggiornano sul posto invece di invalidarla.
+public class MailboxCache {
+
+    // Inbox in cache: la lista dei riferimenti cambia solo sotto il lock della mailbox (come il file),
+    // le intestazioni possono essere aggiornate da un forward che non lo prende e stanno in una mappa concorrente
+    public static final class CachedMailbox {
+
+        private final List<MailboxRef> refs;
+        private final Map<Long, MailHeader> headers = new ConcurrentHashMap<>();
+        private long bytes;
+
+        public CachedMailbox(List<MailboxRef> refs, Map<Long, MailHeader> headers) {
+            this.refs = new ArrayList<>(refs);
+            this.headers.putAll(headers);
+            bytes = ENTRY_BYTES + (long) refs.size() * REF_BYTES;
+            for (MailHeader header : headers.values())
+                bytes += estimate(header);
+        }
+
+        public List<MailboxRef> refs() {
+            return refs;
+        }
+
+        // null se l'intestazione non e' nota
+        public MailHeader header(long id) {
+            return headers.get(id);
+        }
+    }
+
+    public record Stats(long hits, long misses, long evictions, int entries, long bytes) {}
+
+    private static final long ENTRY_BYTES = 256;
+    private static final long REF_BYTES = 40;
+
+    private final long maxBytes;
+    private final long windowMaxBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, CachedMailbox> entries = new HashMap<>();
+    // solo ordine di accesso: la get su una LinkedHashMap in access-order sposta la chiave in coda
+    private final LinkedHashMap<String, Boolean> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> main = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private long windowBytes;
+    private long mainBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    // conta gli onUpdate: una inbox letta da disco mentre un forward cambiava un messaggio non entra in cache
+    private long updates;
+
+    public MailboxCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.windowMaxBytes = Math.max(1, maxBytes / 100);
+        // stima grossolana del numero di inbox che ci stanno, serve solo a dimensionare lo sketch
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(64, maxBytes / 16384)));
+    }
+
+    // null se l'inbox non e' in cache
+    public CachedMailbox get(String email) {
+        lock.lock();
+        try {
+            sketch.increment(email);
+            CachedMailbox mailbox = entries.get(email);
+            if (mailbox == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            if (window.get(email) == null)
+                main.get(email);
+            return mailbox;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Valore da passare a put, letto prima di caricare l'inbox da disco
+    public long stamp() {
+        lock.lock();
+        try {
+            return updates;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(String email, CachedMailbox mailbox, long stamp) {
+        lock.lock();
+        try {
+            remove(email);
+            if (stamp != updates)
+                return;
+            if (mailbox.bytes > maxBytes - windowMaxBytes)
+                return;
+            entries.put(email, mailbox);
+            window.put(email, Boolean.TRUE);
+            windowBytes += mailbox.bytes;
+            evictIfNeeded();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidate(String email) {
+        lock.lock();
+        try {
+            remove(email);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Nuovo riferimento in coda all'inbox (consegna o forward); il chiamante tiene il lock della mailbox
+    public void onAppend(String email, MailboxRef ref, MailHeader header) {
+        lock.lock();
+        try {
+            CachedMailbox mailbox = entries.get(email);
+            if (mailbox == null)
+                return;
+            mailbox.refs.add(ref);
+            MailHeader previous = mailbox.headers.put(ref.id(), header);
+            resize(email, mailbox, REF_BYTES + estimate(header) - (previous == null ? 0 : estimate(previous)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Cancellazione: toglie il primo riferimento al messaggio; il chiamante tiene il lock della mailbox
+    public void onTombstone(String email, long id) {
+        lock.lock();
+        try {
+            CachedMailbox mailbox = entries.get(email);
+            if (mailbox == null)
+                return;
+            Iterator<MailboxRef> iterator = mailbox.refs.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().id() == id) {
+                    iterator.remove();
+                    break;
+                }
+            }
+            long delta = -REF_BYTES;
+            boolean stillReferenced = mailbox.refs.stream().anyMatch(ref -> ref.id() == id);
+            if (!stillReferenced) {
+                MailHeader removed = mailbox.headers.remove(id);
+                if (removed != null)
+                    delta -= estimate(removed);
+            }
+            resize(email, mailbox, delta);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Nuova intestazione di un messaggio (es. destinatari dopo un forward), se l'inbox in cache lo contiene;
+    // con time KEEP_TIME resta l'istante di consegna gia' noto
+    public void onUpdate(String email, MailHeader header) {
+        lock.lock();
+        try {
+            updates++;
+            CachedMailbox mailbox = entries.get(email);
+            if (mailbox == null)
+                return;
+            MailHeader previous = mailbox.headers.get(header.id());
+            if (previous == null)
+                return;
+            if (header.time() == MailHeader.KEEP_TIME)
+                header = new MailHeader(header.id(), previous.time(), header.sender(), header.title(), header.receivers());
+            mailbox.headers.put(header.id(), header);
+            resize(email, mailbox, estimate(header) - estimate(previous));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Stats stats() {
+        lock.lock();
+        try {
+            return new Stats(hits, misses, evictions, entries.size(), windowBytes + mainBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void resize(String email, CachedMailbox mailbox, long delta) {
+        mailbox.bytes += delta;
+        if (window.containsKey(email))
+            windowBytes += delta;
+        else
+            mainBytes += delta;
+        evictIfNeeded();
+    }
+
+    private void remove(String email) {
+        CachedMailbox mailbox = entries.remove(email);
+        if (mailbox == null)
+            return;
+        if (window.remove(email) != null)
+            windowBytes -= mailbox.bytes;
+        else if (main.remove(email) != null)
+            mainBytes -= mailbox.bytes;
+    }
+
+    private void evictIfNeeded() {
+        // chi esce dalla finestra sfida la vittima della parte principale
+        while (windowBytes > windowMaxBytes && !window.isEmpty()) {
+            String candidate = window.keySet().iterator().next();
+            CachedMailbox mailbox = entries.get(candidate);
+            window.remove(candidate);
+            windowBytes -= mailbox.bytes;
+            admit(candidate, mailbox);
+        }
+        while (windowBytes + mainBytes > maxBytes && !main.isEmpty())
+            evict(main.keySet().iterator().next());
+        while (windowBytes + mainBytes > maxBytes && !window.isEmpty())
+            evict(window.keySet().iterator().next());
+    }
+
+    private void admit(String candidate, CachedMailbox mailbox) {
+        long mainMaxBytes = maxBytes - windowMaxBytes;
+        int candidateFrequency = sketch.frequency(candidate);
+        while (mainBytes + mailbox.bytes > mainMaxBytes && !main.isEmpty()) {
+            String victim = main.keySet().iterator().next();
+            if (sketch.frequency(victim) >= candidateFrequency) {
+                // il candidato e' meno richiesto di chi dovrebbe far posto: resta fuori
+                entries.remove(candidate);
+                evictions++;
+                return;
+            }
+            evict(victim);
+        }
+        main.put(candidate, Boolean.TRUE);
+        mainBytes += mailbox.bytes;
+    }
+
+    private void evict(String email) {
+        remove(email);
+        evictions++;
+    }
+
+    static long estimate(MailHeader header) {
+        long bytes = 96 + 2L * (length(header.sender()) + length(header.title()));
+        if (header.receivers() != null) {
+            for (String receiver : header.receivers())
+                bytes += 48 + 2L * length(receiver);
+        }
+        return bytes;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+}
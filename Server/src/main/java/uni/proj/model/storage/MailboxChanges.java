@@ -0,0 +1,8 @@
+package uni.proj.model.storage;
+
+import java.util.List;
+
+// Modifiche di una mailbox dopo una sequenza: riferimenti aggiunti e tombstone, sequence e' l'ultima
+// sequenza della mailbox. complete false: le modifiche non sono ricostruibili e serve ricaricare l'inbox
+public record MailboxChanges(List<MailboxRef> records, long sequence, boolean complete) {
+}
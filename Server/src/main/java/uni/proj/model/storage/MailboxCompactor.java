@@ -0,0 +1,175 @@
+package uni.proj.model.storage;
+
+import uni.proj.model.Logger;
+import uni.proj.model.MailboxLocks;
+import uni.proj.model.status.Error;
+import uni.proj.model.status.Info;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Compattazione in background delle inbox: riscrive il file senza tombstone e riferimenti annullati
+// solo quando la quota di record morti supera la soglia. Un solo thread, con una pausa tra due
+// compattazioni. Il grosso del lavoro avviene senza lock: le consegne alla stessa mailbox proseguono
+// e il lock serve solo per copiare i riferimenti arrivati nel frattempo e fare il rename.
+public class MailboxCompactor {
+
+    private final MailboxStore store;
+    private final HeaderIndex headers;
+    private final MailboxLocks locks;
+    private final Logger logger;
+    private final double minDeadRatio;
+    private final long pauseMillis;
+    private final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private Thread thread;
+
+    public MailboxCompactor(MailboxStore store, HeaderIndex headers, MailboxLocks locks, Logger logger, double minDeadRatio, long pauseMillis) {
+        this.store = store;
+        this.headers = headers;
+        this.locks = locks;
+        this.logger = logger;
+        this.minDeadRatio = minDeadRatio;
+        this.pauseMillis = pauseMillis;
+    }
+
+    // Da chiamare una sola volta, all'avvio del server
+    public void start() {
+        if (thread != null)
+            return;
+        thread = new Thread(this::run, "mailbox-compactor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    // Segnala una mailbox da controllare (es. dopo una cancellazione); le richieste ripetute si fondono
+    public void schedule(String email) {
+        if (queued.add(email))
+            queue.add(email);
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                String email = queue.take();
+                queued.remove(email);
+                try {
+                    compact(email);
+                } catch (IOException e) {
+                    logger.log(new Error("Errore durante la compattazione dell'inbox di " + email + ": " + e.getMessage()));
+                }
+                Thread.sleep(pauseMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // true se il file e' stato riscritto
+    boolean compact(String email) throws IOException {
+        Path file = store.pathFor(email);
+        if (!Files.exists(file))
+            return false;
+
+        // fotografia dei record presenti: gli append successivi finiscono oltre snapshot
+        long snapshot;
+        List<MailboxRef> records;
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            snapshot = source.size() - source.size() % MailboxStore.REF_BYTES;
+            ByteBuffer buffer = ByteBuffer.allocate((int) snapshot);
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer, buffer.position()) < 0)
+                    break;
+            }
+            records = MailboxStore.decode(buffer.flip());
+        }
+        // i record successivi all'ultimo checkpoint restano anche se morti: servono alla riapplicazione del WAL
+        Set<MailboxRef> removable = removable(records, store.checkpointSequence(email));
+        long markers = records.stream().filter(MailboxRef::isCompacted).count();
+        if (removable.isEmpty() || (double) removable.size() / (records.size() - markers) < minDeadRatio)
+            return false;
+
+        // il segnaposto ricorda fin dove arrivano i record eliminati: chi chiede le modifiche da una sequenza
+        // precedente deve ricaricare l'inbox, e le nuove sequenze non ripartono da quelle eliminate
+        long dropped = 0;
+        List<MailboxRef> kept = new ArrayList<>(records.size() - removable.size());
+        for (MailboxRef ref : records) {
+            if (ref.isCompacted() || removable.contains(ref))
+                dropped = Math.max(dropped, ref.seq());
+            else
+                kept.add(ref);
+        }
+        List<MailboxRef> compacted = new ArrayList<>(kept.size() + 1);
+        compacted.add(new MailboxRef(0, MailboxRef.COMPACTED, dropped));
+        compacted.addAll(kept);
+
+        Path temp = file.resolveSibling(file.getFileName() + ".compact");
+        try (FileChannel target = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = MailboxStore.encode(compacted);
+            while (buffer.hasRemaining())
+                target.write(buffer);
+            target.force(true);
+        }
+
+        try (MailboxLocks.Held held = locks.lock(email)) {
+            // record arrivati durante la compattazione (consegne o tombstone): si accodano cosi' come sono,
+            // un tombstone annulla comunque il primo riferimento vivo che trova
+            try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                long size = source.size() - source.size() % MailboxStore.REF_BYTES;
+                if (size > snapshot) {
+                    long copied = 0;
+                    while (copied < size - snapshot)
+                        copied += source.transferTo(snapshot + copied, size - snapshot - copied, target);
+                    target.force(true);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // anche l'indice delle intestazioni perde le mail cancellate
+            Set<Long> ids = new HashSet<>();
+            for (MailboxRef ref : store.readAll(email))
+                ids.add(ref.id());
+            headers.retain(email, ids);
+        }
+        logger.log(new Info("Inbox di " + email + " compattata: " + records.size() + " -> " + kept.size() + " record"));
+        return true;
+    }
+
+    // Record morti fino alla sequenza base: un tombstone con il riferimento che annulla (o da solo, se il
+    // riferimento e' gia' stato eliminato). Una coppia con il tombstone oltre base resta intera
+    static Set<MailboxRef> removable(List<MailboxRef> records, long base) {
+        Set<MailboxRef> removable = new HashSet<>();
+        Map<Long, ArrayDeque<MailboxRef>> alive = new HashMap<>();
+        for (MailboxRef ref : records) {
+            if (ref.isCompacted())
+                continue;
+            if (ref.isTombstone()) {
+                ArrayDeque<MailboxRef> refs = alive.get(ref.id());
+                MailboxRef target = refs == null ? null : refs.pollFirst();
+                if (ref.seq() <= base) {
+                    removable.add(ref);
+                    if (target != null)
+                        removable.add(target);
+                }
+            } else {
+                alive.computeIfAbsent(ref.id(), id -> new ArrayDeque<>()).add(ref);
+            }
+        }
+        return removable;
+    }
+}
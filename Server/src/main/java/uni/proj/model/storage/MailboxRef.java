@@ -0,0 +1,28 @@
+package uni.proj.model.storage;
+
+// Voce di una inbox: id del messaggio nel MessageStore, flag di stato della singola mailbox e numero di
+// sequenza assegnato dalla mailbox al momento dell'append (crescente, non riusato)
+public record MailboxRef(long id, int flags, long seq) {
+
+    // cancellazione: annulla il primo riferimento precedente allo stesso messaggio
+    public static final int TOMBSTONE = 1;
+    // segnaposto scritto in testa dalla compattazione: seq e' la sequenza piu' alta tra i record eliminati
+    public static final int COMPACTED = 2;
+
+    // Voce ancora da scrivere: la sequenza la assegna MailboxStore.append
+    public MailboxRef(long id, int flags) {
+        this(id, flags, 0);
+    }
+
+    public boolean isTombstone() {
+        return (flags & TOMBSTONE) != 0;
+    }
+
+    public boolean isCompacted() {
+        return (flags & COMPACTED) != 0;
+    }
+
+    MailboxRef withSeq(long seq) {
+        return new MailboxRef(id, flags, seq);
+    }
+}
@@ -0,0 +1,455 @@
+package uni.proj.model.storage;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import uni.proj.model.protocol.ProtocolHandler;
+import uni.proj.model.protocol.data.SendMailData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Inbox su disco come sequenza di riferimenti a dimensione fissa (id messaggio, flag e numero di sequenza,
+// 20 byte): il contenuto delle mail sta una volta sola nel MessageStore. Si scrive solo in append, anche per
+// cancellare (tombstone); MailboxCompactor elimina in background i riferimenti morti.
+// I record sono ordinati per sequenza (a parte il segnaposto della compattazione in testa), quindi le
+// modifiche successive a una sequenza si trovano con una ricerca binaria nel file.
+// Non sincronizzata: chi la usa deve tenere il lock della mailbox (MailboxLocks).
+public class MailboxStore {
+
+    static final int REF_BYTES = Long.BYTES + Integer.BYTES + Long.BYTES;
+
+    private static final String EXTENSION = ".mailbox";
+    // formati precedenti: array JSON, righe con la mail completa e riferimenti senza sequenza (12 byte)
+    private static final String LEGACY_ARRAY_EXTENSION = ".json";
+    private static final String LEGACY_LINES_EXTENSION = ".jsonl";
+    private static final String LEGACY_REFS_EXTENSION = ".refs";
+    private static final int LEGACY_REF_BYTES = Long.BYTES + Integer.BYTES;
+    // sequenza di ogni mailbox all'ultimo checkpoint; .next e' quella del checkpoint in corso, che diventa
+    // valida solo dopo lo svuotamento del WAL
+    private static final String CHECKPOINT_FILE = "checkpoint.seq";
+    private static final String CHECKPOINT_NEXT_FILE = "checkpoint.seq.next";
+
+    private final Path directory;
+    private final ProtocolHandler protocolHandler;
+    // inbox modificate con append e non ancora forzate su disco (vedi forceDirty)
+    private final Set<Path> dirty = ConcurrentHashMap.newKeySet();
+    // sequenza di ogni mailbox (nome del file) all'ultimo checkpoint: le voci rimaste nel WAL riguardano solo i
+    // record successivi. Una mailbox che manca non aveva record al checkpoint
+    private final Map<String, Long> checkpointed = new ConcurrentHashMap<>();
+    private boolean checkpointMissing;
+    // riapplicazione del WAL: voci gia' riconosciute per mailbox, messaggio e tipo di record (vedi replayed)
+    private final Map<String, Integer> replayMatched = new HashMap<>();
+
+    public MailboxStore(Path directory, ProtocolHandler protocolHandler) {
+        this.directory = directory;
+        this.protocolHandler = protocolHandler;
+    }
+
+    public Path pathFor(String email) {
+        return pathFor(email, EXTENSION);
+    }
+
+    // File accessori della mailbox (es. indici), con lo stesso nome e un'altra estensione
+    Path pathFor(String email, String extension) {
+        String encodedEmail = Base64.getUrlEncoder().withoutPadding().encodeToString(email.getBytes(StandardCharsets.UTF_8));
+        return directory.resolve(encodedEmail + extension);
+    }
+
+    // Indirizzi di tutte le mailbox presenti su disco
+    public List<String> mailboxes() throws IOException {
+        List<String> emails = new ArrayList<>();
+        if (!Files.isDirectory(directory))
+            return emails;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                byte[] email = Base64.getUrlDecoder().decode(name.substring(0, name.length() - EXTENSION.length()));
+                emails.add(new String(email, StandardCharsets.UTF_8));
+            }
+        }
+        return emails;
+    }
+
+    public boolean exists(String email) {
+        return Files.exists(pathFor(email));
+    }
+
+    // Crea l'inbox vuota se non esiste
+    public void create(String email) throws IOException {
+        Files.createDirectories(directory);
+        Path file = pathFor(email);
+        if (!Files.exists(file))
+            Files.createFile(file);
+    }
+
+    // Restituisce il riferimento scritto, con la sequenza assegnata
+    public MailboxRef append(String email, MailboxRef ref) throws IOException {
+        Files.createDirectories(directory);
+        MailboxRef stored;
+        try (FileChannel channel = FileChannel.open(pathFor(email), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // un append precedente interrotto lascia un riferimento incompleto: lo si scarta
+            long size = channel.size() - channel.size() % REF_BYTES;
+            channel.truncate(size);
+            stored = ref.withSeq(lastSequence(channel, size) + 1);
+            ByteBuffer buffer = encode(List.of(stored));
+            while (buffer.hasRemaining())
+                channel.write(buffer, size + buffer.position());
+        }
+        dirty.add(pathFor(email));
+        return stored;
+    }
+
+    public boolean contains(String email, long id) throws IOException {
+        for (MailboxRef ref : readAll(email)) {
+            if (ref.id() == id)
+                return true;
+        }
+        return false;
+    }
+
+    // Cancellazione in O(1): tombstone in append che annulla il primo riferimento vivo al messaggio
+    public MailboxRef tombstone(String email, long id) throws IOException {
+        return append(email, new MailboxRef(id, MailboxRef.TOMBSTONE));
+    }
+
+    // Forza su disco le inbox modificate dall'ultimo checkpoint e prepara le loro sequenze per commitCheckpoint;
+    // non deve girare insieme agli append. Al primo checkpoint senza file delle sequenze le prende da tutte
+    public void forceDirty() throws IOException {
+        if (checkpointMissing) {
+            for (String email : mailboxes())
+                dirty.add(pathFor(email));
+        }
+        Map<String, Long> next = new HashMap<>(checkpointed);
+        for (Path file : dirty) {
+            if (Files.exists(file)) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    channel.force(false);
+                    next.put(file.getFileName().toString(), lastSequence(channel, channel.size() - channel.size() % REF_BYTES));
+                }
+            }
+            dirty.remove(file);
+        }
+        if (!next.equals(checkpointed) || checkpointMissing) {
+            JsonObject json = new JsonObject();
+            next.forEach(json::addProperty);
+            Files.createDirectories(directory);
+            try (FileChannel channel = FileChannel.open(directory.resolve(CHECKPOINT_NEXT_FILE), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(json.toString().getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                channel.force(true);
+            }
+        }
+    }
+
+    // Da chiamare dopo lo svuotamento del WAL: le sequenze preparate da forceDirty diventano quelle del checkpoint
+    public void commitCheckpoint() throws IOException {
+        replayMatched.clear();
+        Path next = directory.resolve(CHECKPOINT_NEXT_FILE);
+        if (!Files.exists(next))
+            return;
+        Files.move(next, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        loadCheckpoint();
+    }
+
+    // All'avvio, prima di riapplicare il WAL. Un checkpoint interrotto dopo aver svuotato il WAL (walEmpty) era
+    // completo e le sue sequenze valgono; se il WAL non e' stato svuotato valgono quelle del precedente
+    public void openCheckpoint(boolean walEmpty) throws IOException {
+        Path next = directory.resolve(CHECKPOINT_NEXT_FILE);
+        if (Files.exists(next)) {
+            if (walEmpty)
+                Files.move(next, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            else
+                Files.delete(next);
+        }
+        loadCheckpoint();
+    }
+
+    private void loadCheckpoint() throws IOException {
+        Path file = directory.resolve(CHECKPOINT_FILE);
+        checkpointed.clear();
+        checkpointMissing = !Files.exists(file);
+        if (checkpointMissing)
+            return;
+        try {
+            JsonObject json = JsonParser.parseString(Files.readString(file)).getAsJsonObject();
+            for (String name : json.keySet())
+                checkpointed.put(name, json.get(name).getAsLong());
+        } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+            throw new IOException("sequenze del checkpoint non valide: " + e.getMessage(), e);
+        }
+    }
+
+    // Sequenza della mailbox all'ultimo checkpoint, 0 se allora era vuota o non c'era
+    public long checkpointSequence(String email) {
+        return checkpointed.getOrDefault(pathFor(email).getFileName().toString(), 0L);
+    }
+
+    // Riapplicazione del WAL: true se il record della voce (riferimento o tombstone al messaggio id) e' gia' nel file.
+    // Le voci di una mailbox rimaste nel WAL corrispondono in ordine ai suoi record successivi al checkpoint, che la
+    // compattazione non elimina: l'n-esima voce per lo stesso messaggio e tipo e' gia' applicata se dopo il
+    // checkpoint ci sono almeno n record di quel tipo. Va chiamata una volta per voce, nell'ordine del WAL
+    public boolean replayed(String email, long id, boolean tombstone) throws IOException {
+        long base = checkpointSequence(email);
+        long present = 0;
+        for (MailboxRef ref : records(email)) {
+            if (!ref.isCompacted() && ref.id() == id && ref.isTombstone() == tombstone && ref.seq() > base)
+                present++;
+        }
+        int matched = replayMatched.merge(pathFor(email).getFileName() + " " + id + " " + tombstone, 1, Integer::sum);
+        return matched <= present;
+    }
+
+    // Sequenza dell'ultima modifica della mailbox, 0 se e' vuota
+    public long lastSequence(String email) throws IOException {
+        Path file = pathFor(email);
+        if (!Files.exists(file))
+            return 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return lastSequence(channel, channel.size() - channel.size() % REF_BYTES);
+        }
+    }
+
+    // Modifiche con sequenza maggiore di since, nell'ordine in cui sono avvenute. Un riferimento aggiunto e
+    // cancellato dopo since non compare affatto. Se la compattazione ha gia' eliminato record successivi a since
+    // (o since viene da un'altra storia della mailbox) le modifiche non sono ricostruibili: complete e' false
+    public MailboxChanges changesSince(String email, long since) throws IOException {
+        Path file = pathFor(email);
+        if (!Files.exists(file))
+            return new MailboxChanges(List.of(), 0, since == 0);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long count = channel.size() / REF_BYTES;
+            long last = lastSequence(channel, count * REF_BYTES);
+            if (count == 0 || since >= last)
+                return new MailboxChanges(List.of(), last, since == last);
+            long low = 0;
+            MailboxRef first = readAt(channel, 0);
+            if (first.isCompacted()) {
+                if (since < first.seq())
+                    return new MailboxChanges(List.of(), last, false);
+                low = 1;
+            }
+            // primo record con sequenza maggiore di since
+            long high = count;
+            while (low < high) {
+                long middle = (low + high) >>> 1;
+                if (readAt(channel, middle).seq() <= since)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) ((count - low) * REF_BYTES));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, low * REF_BYTES + buffer.position()) < 0)
+                    break;
+            }
+            return new MailboxChanges(net(decode(buffer.flip())), last, true);
+        }
+    }
+
+    // Riferimenti vivi, nell'ordine di arrivo (tombstone gia' applicati)
+    public List<MailboxRef> readAll(String email) throws IOException {
+        return live(records(email));
+    }
+
+    // Tutti i record del file, tombstone compresi
+    private List<MailboxRef> records(String email) throws IOException {
+        Path file = pathFor(email);
+        if (!Files.exists(file))
+            return new ArrayList<>();
+        return decode(ByteBuffer.wrap(Files.readAllBytes(file)));
+    }
+
+    static List<MailboxRef> decode(ByteBuffer buffer) {
+        List<MailboxRef> records = new ArrayList<>(buffer.remaining() / REF_BYTES);
+        while (buffer.remaining() >= REF_BYTES)
+            records.add(new MailboxRef(buffer.getLong(), buffer.getInt(), buffer.getLong()));
+        return records;
+    }
+
+    // Ogni tombstone annulla il primo riferimento ancora vivo allo stesso messaggio
+    static List<MailboxRef> live(List<MailboxRef> records) {
+        return cancel(records, false);
+    }
+
+    // Come live, ma restano i tombstone che non trovano il riferimento nella lista (cancellano record precedenti)
+    static List<MailboxRef> net(List<MailboxRef> records) {
+        return cancel(records, true);
+    }
+
+    private static List<MailboxRef> cancel(List<MailboxRef> records, boolean keepUnmatched) {
+        MailboxRef[] kept = records.toArray(MailboxRef[]::new);
+        Map<Long, ArrayDeque<Integer>> positions = new HashMap<>();
+        for (int i = 0; i < kept.length; i++) {
+            MailboxRef ref = kept[i];
+            if (ref.isCompacted()) {
+                kept[i] = null;
+            } else if (ref.isTombstone()) {
+                ArrayDeque<Integer> alive = positions.get(ref.id());
+                if (alive != null && !alive.isEmpty()) {
+                    kept[alive.pollFirst()] = null;
+                    kept[i] = null;
+                } else if (!keepUnmatched) {
+                    kept[i] = null;
+                }
+            } else {
+                positions.computeIfAbsent(ref.id(), id -> new ArrayDeque<>()).add(i);
+            }
+        }
+        List<MailboxRef> refs = new ArrayList<>();
+        for (MailboxRef ref : kept) {
+            if (ref != null)
+                refs.add(ref);
+        }
+        return refs;
+    }
+
+    // Conversione una tantum delle inbox nei formati precedenti: le mail finiscono nel MessageStore
+    // (una sola copia per le mail identiche presenti in piu' inbox) e l'originale resta come .bak.
+    // Da chiamare all'avvio prima di accettare connessioni. Restituisce il numero di inbox convertite.
+    public int migrate(MessageStore messages) throws IOException {
+        if (!Files.isDirectory(directory))
+            return 0;
+        Map<String, Long> imported = new HashMap<>();
+        int migrated = migrateRefs();
+        for (String extension : List.of(LEGACY_ARRAY_EXTENSION, LEGACY_LINES_EXTENSION)) {
+            try (DirectoryStream<Path> legacyFiles = Files.newDirectoryStream(directory, "*" + extension)) {
+                for (Path legacy : legacyFiles) {
+                    String name = legacy.getFileName().toString();
+                    Path target = directory.resolve(name.substring(0, name.length() - extension.length()) + EXTENSION);
+                    // se il file di riferimenti esiste gia' la conversione era arrivata al rename finale
+                    if (!Files.exists(target)) {
+                        List<SendMailData> mails = extension.equals(LEGACY_ARRAY_EXTENSION) ? readLegacyArray(legacy) : readLegacyLines(legacy);
+                        List<MailboxRef> refs = new ArrayList<>();
+                        for (SendMailData mail : mails) {
+                            Long id = imported.get(identity(mail));
+                            if (id == null) {
+                                id = messages.add(mail);
+                                imported.put(identity(mail), id);
+                            }
+                            refs.add(new MailboxRef(id, 0, refs.size() + 1));
+                        }
+                        writeMigrated(target, refs);
+                    }
+                    Files.move(legacy, legacy.resolveSibling(name + ".bak"), StandardCopyOption.REPLACE_EXISTING);
+                    migrated++;
+                }
+            }
+        }
+        return migrated;
+    }
+
+    // Riferimenti senza sequenza: la sequenza e' la posizione nel file
+    private int migrateRefs() throws IOException {
+        int migrated = 0;
+        try (DirectoryStream<Path> legacyFiles = Files.newDirectoryStream(directory, "*" + LEGACY_REFS_EXTENSION)) {
+            for (Path legacy : legacyFiles) {
+                String name = legacy.getFileName().toString();
+                Path target = directory.resolve(name.substring(0, name.length() - LEGACY_REFS_EXTENSION.length()) + EXTENSION);
+                if (!Files.exists(target)) {
+                    ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(legacy));
+                    List<MailboxRef> refs = new ArrayList<>();
+                    while (content.remaining() >= LEGACY_REF_BYTES)
+                        refs.add(new MailboxRef(content.getLong(), content.getInt(), refs.size() + 1));
+                    writeMigrated(target, refs);
+                }
+                Files.move(legacy, legacy.resolveSibling(name + ".bak"), StandardCopyOption.REPLACE_EXISTING);
+                migrated++;
+            }
+        }
+        return migrated;
+    }
+
+    private void writeMigrated(Path target, List<MailboxRef> refs) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = encode(refs);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private List<SendMailData> readLegacyArray(Path legacy) throws IOException {
+        String content = Files.readString(legacy, StandardCharsets.UTF_8);
+        List<SendMailData> mails = new ArrayList<>();
+        if (content.isBlank())
+            return mails;
+        try {
+            JsonArray array = JsonParser.parseString(content).getAsJsonArray();
+            for (JsonElement element : array)
+                mails.add(decode(element.toString()));
+        } catch (JsonParseException | IllegalStateException | ClassCastException e) {
+            throw new IOException("inbox non valida " + legacy.getFileName() + ": " + e.getMessage(), e);
+        }
+        return mails;
+    }
+
+    private List<SendMailData> readLegacyLines(Path legacy) throws IOException {
+        byte[] content = Files.readAllBytes(legacy);
+        List<SendMailData> mails = new ArrayList<>();
+        try {
+            Records.forEach(content, (id, offset, length) -> mails.add(decode(Records.payload(content, offset, length))));
+        } catch (JsonParseException | ClassCastException e) {
+            throw new IOException("inbox non valida " + legacy.getFileName() + ": " + e.getMessage(), e);
+        }
+        return mails;
+    }
+
+    private SendMailData decode(String json) {
+        return (SendMailData) protocolHandler.decode(json).data();
+    }
+
+    // Chiave per riconoscere la stessa mail in inbox diverse (l'ordine dei destinatari non conta)
+    private static String identity(SendMailData mail) {
+        String[] receivers = mail.receiversEmail().clone();
+        Arrays.sort(receivers);
+        return mail.senderEmail() + '\0' + mail.title() + '\0' + mail.body() + '\0' + String.join("\0", receivers);
+    }
+
+    static ByteBuffer encode(List<MailboxRef> refs) {
+        ByteBuffer buffer = ByteBuffer.allocate(refs.size() * REF_BYTES);
+        for (MailboxRef ref : refs)
+            buffer.putLong(ref.id()).putInt(ref.flags()).putLong(ref.seq());
+        return buffer.flip();
+    }
+
+    private static MailboxRef readAt(FileChannel channel, long index) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(REF_BYTES);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, index * REF_BYTES + buffer.position()) < 0)
+                throw new IOException("inbox troncata durante la lettura");
+        }
+        return decode(buffer.flip()).getFirst();
+    }
+
+    // La sequenza piu' alta e' quella dell'ultimo record o, dopo una compattazione che ha tolto i record
+    // in coda, quella del segnaposto in testa
+    private static long lastSequence(FileChannel channel, long size) throws IOException {
+        if (size < REF_BYTES)
+            return 0;
+        long count = size / REF_BYTES;
+        return Math.max(readAt(channel, 0).seq(), readAt(channel, count - 1).seq());
+    }
+}
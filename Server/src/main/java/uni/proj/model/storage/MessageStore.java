@@ -0,0 +1,185 @@
+package uni.proj.model.storage;
+
+import uni.proj.model.protocol.MessageType;
+import uni.proj.model.protocol.ProtocolHandler;
+import uni.proj.model.protocol.ProtocolMessage;
+import uni.proj.model.protocol.data.SendMailData;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Archivio unico dei messaggi: ogni mail e' salvata una volta sola con un id assegnato dal server,
+// le inbox contengono solo riferimenti (MailboxRef). File append-only in formato Records in cui il json
+// e' gia' il messaggio SEND_MAIL come viaggia in rete; una modifica (es. destinatari dopo un forward)
+// aggiunge una nuova versione con lo stesso id e l'indice punta all'ultima.
+// Le letture passano da segmenti mappati in memoria e restituiscono porzioni del file senza copiarle.
+public class MessageStore {
+
+    private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private record Location(long offset, int length) {}
+
+    private final Path file;
+    private final ProtocolHandler protocolHandler;
+    private final ConcurrentHashMap<Long, Location> index = new ConcurrentHashMap<>();
+    // segmento i = [i * SEGMENT_BYTES, (i + 1) * SEGMENT_BYTES), mappato fino alla fine del file al momento
+    private final ConcurrentHashMap<Integer, MappedByteBuffer> segments = new ConcurrentHashMap<>();
+    // serializza solo le scritture, le letture sono posizionali e non lo prendono
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private FileChannel channel;
+    private long nextId = 1;
+    private volatile long end;
+
+    public MessageStore(Path file, ProtocolHandler protocolHandler) {
+        this.file = file;
+        this.protocolHandler = protocolHandler;
+    }
+
+    // Ricostruisce l'indice dal file e tronca un eventuale record finale interrotto
+    public void open() throws IOException {
+        writeLock.lock();
+        try {
+            if (channel != null)
+                return;
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            byte[] content = Files.readAllBytes(file);
+            int valid = Records.forEach(content, (id, offset, length) -> {
+                if (id == Records.NO_ID)
+                    return;
+                index.put(id, new Location(offset, length));
+                nextId = Math.max(nextId, id + 1);
+            });
+            if (valid < content.length)
+                channel.truncate(valid);
+            end = valid;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public long add(SendMailData mail) throws IOException {
+        writeLock.lock();
+        try {
+            long id = nextId++;
+            write(id, mail);
+            return id;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Id per un messaggio da scrivere piu' tardi con put (prima va registrato nel WAL)
+    public long reserveId() {
+        writeLock.lock();
+        try {
+            return nextId++;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Scrive il messaggio con l'id indicato; se esiste gia' diventa la nuova versione
+    // (le inbox che lo referenziano la vedono subito)
+    public void put(long id, SendMailData mail) throws IOException {
+        writeLock.lock();
+        try {
+            write(id, mail);
+            nextId = Math.max(nextId, id + 1);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean contains(long id) {
+        return index.containsKey(id);
+    }
+
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    // null se l'id non e' presente nell'archivio
+    public SendMailData get(long id) throws IOException {
+        ByteBuffer frame = wireFrame(id);
+        if (frame == null)
+            return null;
+        String json = StandardCharsets.UTF_8.decode(frame.limit(frame.limit() - 1)).toString();
+        return (SendMailData) protocolHandler.decode(json).data();
+    }
+
+    // Il messaggio SEND_MAIL cosi' come va inviato al client (json seguito da '\n'),
+    // in sola lettura e senza copie; null se l'id non e' presente nell'archivio
+    public ByteBuffer wireFrame(long id) throws IOException {
+        Location location = index.get(id);
+        if (location == null)
+            return null;
+        // nel record il json e' sempre seguito dal '\n' di fine riga
+        return region(location.offset(), location.length() + 1);
+    }
+
+    // Solo i dati della mail (l'oggetto SendMailData in json), ritagliati dalla riga salvata senza copiarli;
+    // null se l'id non e' presente nell'archivio
+    public ByteBuffer mailJson(long id) throws IOException {
+        ByteBuffer frame = wireFrame(id);
+        if (frame == null)
+            return null;
+        try {
+            return protocolHandler.sendMailData(frame);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("record del messaggio " + id + " non valido", e);
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    private ByteBuffer region(long offset, int length) throws IOException {
+        int segment = (int) (offset / SEGMENT_BYTES);
+        long segmentStart = (long) segment * SEGMENT_BYTES;
+        int from = (int) (offset - segmentStart);
+        if (from + length > SEGMENT_BYTES)
+            return readAcrossSegments(offset, length);
+        MappedByteBuffer mapped = segments.get(segment);
+        if (mapped == null || mapped.capacity() < from + length) {
+            // il segmento si allunga con il file: lo si rimappa fino alla fine attuale
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, Math.min(SEGMENT_BYTES, end - segmentStart));
+            segments.put(segment, mapped);
+        }
+        return mapped.slice(from, length).asReadOnlyBuffer();
+    }
+
+    // Record a cavallo di due segmenti: raro, lo si copia
+    private ByteBuffer readAcrossSegments(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                throw new EOFException("record troncato all'offset " + offset);
+        }
+        return buffer.flip().asReadOnlyBuffer();
+    }
+
+    private void write(long id, SendMailData mail) throws IOException {
+        String json = protocolHandler.encode(new ProtocolMessage<>(MessageType.SEND_MAIL, mail), SendMailData.class);
+        byte[] record = Records.frame(id, json);
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining())
+            channel.write(buffer, end + buffer.position());
+        // il json e' in fondo al record, prima del '\n'; end avanza prima di pubblicare la posizione
+        // cosi' chi legge l'indice rimappa sempre fino a coprire il record
+        int length = json.getBytes(StandardCharsets.UTF_8).length;
+        long offset = end + record.length - 1 - length;
+        end += record.length;
+        index.put(id, new Location(offset, length));
+    }
+}
@@ -0,0 +1,132 @@
+package uni.proj.model.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Lista compressa degli id dei messaggi che contengono un termine, in ordine crescente, con la frequenza
+// del termine in ciascuno. Ogni voce e' la differenza dall'id precedente seguita dalla frequenza, entrambe
+// varint (7 bit per byte): con id vicini la maggior parte delle voci occupa due byte. Non sincronizzata.
+final class PostingList {
+
+    @FunctionalInterface
+    interface PostingConsumer {
+        void accept(long id, int frequency);
+    }
+
+    private byte[] bytes;
+    private int length;
+    private int size;
+    private long lastId;
+
+    PostingList() {
+        this(new byte[8], 0, 0, 0);
+    }
+
+    private PostingList(byte[] bytes, int length, int size, long lastId) {
+        this.bytes = bytes;
+        this.length = length;
+        this.size = size;
+        this.lastId = lastId;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Aggiunge il messaggio se non c'e' gia'. Gli id arrivano quasi sempre crescenti (append in coda),
+    // solo un forward di una mail vecchia costringe a ricodificare la lista
+    void add(long id, int frequency) {
+        if (size == 0 || id > lastId) {
+            append(id, frequency);
+            return;
+        }
+        List<long[]> entries = decode();
+        int index = 0;
+        while (index < entries.size() && entries.get(index)[0] < id)
+            index++;
+        if (index < entries.size() && entries.get(index)[0] == id)
+            return;
+        entries.add(index, new long[]{id, frequency});
+        rebuild(entries);
+    }
+
+    // false se il messaggio non era nella lista
+    boolean remove(long id) {
+        List<long[]> entries = decode();
+        boolean removed = entries.removeIf(entry -> entry[0] == id);
+        if (removed)
+            rebuild(entries);
+        return removed;
+    }
+
+    void forEach(PostingConsumer consumer) {
+        int position = 0;
+        long id = 0;
+        while (position < length) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            int frequency = 0;
+            shift = 0;
+            do {
+                b = bytes[position++];
+                frequency |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += delta;
+            consumer.accept(id, frequency);
+        }
+    }
+
+    // Forma su disco: le voci codificate, gia' compatte
+    byte[] encoded() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    static PostingList decode(byte[] encoded, int size) {
+        PostingList list = new PostingList(encoded, encoded.length, size, 0);
+        list.forEach((id, frequency) -> list.lastId = id);
+        return list;
+    }
+
+    private void append(long id, int frequency) {
+        ensureCapacity(20);
+        writeVarint(id - lastId);
+        writeVarint(frequency);
+        lastId = id;
+        size++;
+    }
+
+    private List<long[]> decode() {
+        List<long[]> entries = new ArrayList<>(size);
+        forEach((id, frequency) -> entries.add(new long[]{id, frequency}));
+        return entries;
+    }
+
+    private void rebuild(List<long[]> entries) {
+        length = 0;
+        size = 0;
+        lastId = 0;
+        for (long[] entry : entries)
+            append(entry[0], (int) entry[1]);
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[length++] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+    }
+}
@@ -0,0 +1,88 @@
+package uni.proj.model.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+// Formato a righe dei file di storage: "<id>:<lunghezza>:<crc32 esadecimale>:<json>\n".
+// Il checksum copre id e json; lunghezza e checksum permettono di scartare un record scritto a meta'.
+// Le vecchie inbox a righe non hanno l'id ("<lunghezza>:<crc32>:<json>") e vengono lette con id NO_ID.
+public final class Records {
+
+    public static final long NO_ID = -1;
+
+    @FunctionalInterface
+    public interface RecordConsumer {
+        // offset e length individuano il json dentro il contenuto passato a forEach
+        void accept(long id, int offset, int length);
+    }
+
+    private Records() {}
+
+    public static byte[] frame(long id, String json) {
+        byte[] idPrefix = (id + ":").getBytes(StandardCharsets.US_ASCII);
+        byte[] payload = json.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(idPrefix);
+        crc.update(payload);
+        byte[] prefix = (id + ":" + payload.length + ":" + String.format("%08x", crc.getValue()) + ":")
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] record = new byte[prefix.length + payload.length + 1];
+        System.arraycopy(prefix, 0, record, 0, prefix.length);
+        System.arraycopy(payload, 0, record, prefix.length, payload.length);
+        record[record.length - 1] = '\n';
+        return record;
+    }
+
+    public static String payload(byte[] content, int offset, int length) {
+        return new String(content, offset, length, StandardCharsets.UTF_8);
+    }
+
+    // Scorre i record validi saltando le righe corrotte; una riga finale senza '\n'
+    // e' un append interrotto e viene ignorata. Restituisce la lunghezza del contenuto integro.
+    public static int forEach(byte[] content, RecordConsumer consumer) {
+        int pos = 0;
+        while (pos < content.length) {
+            int end = indexOf(content, (byte) '\n', pos, content.length);
+            if (end < 0)
+                return pos;
+            parse(content, pos, end, consumer);
+            pos = end + 1;
+        }
+        return pos;
+    }
+
+    // Interpreta la riga [start, end); le righe non valide vengono ignorate
+    private static void parse(byte[] content, int start, int end, RecordConsumer consumer) {
+        // l'intestazione finisce dove inizia il json
+        int payloadStart = indexOf(content, (byte) '{', start, end);
+        if (payloadStart < 0)
+            return;
+        String[] fields = new String(content, start, payloadStart - start, StandardCharsets.US_ASCII).split(":", -1);
+        if ((fields.length != 3 && fields.length != 4) || !fields[fields.length - 1].isEmpty())
+            return;
+        try {
+            boolean legacy = fields.length == 3;
+            long id = legacy ? NO_ID : Long.parseLong(fields[0]);
+            int length = Integer.parseInt(fields[fields.length - 3]);
+            long checksum = Long.parseLong(fields[fields.length - 2], 16);
+            if (end - payloadStart != length)
+                return;
+            CRC32 crc = new CRC32();
+            if (!legacy)
+                crc.update(content, start, fields[0].length() + 1);
+            crc.update(content, payloadStart, length);
+            if (crc.getValue() == checksum)
+                consumer.accept(id, payloadStart, length);
+        } catch (NumberFormatException e) {
+            // riga corrotta
+        }
+    }
+
+    private static int indexOf(byte[] content, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (content[i] == value)
+                return i;
+        }
+        return -1;
+    }
+}
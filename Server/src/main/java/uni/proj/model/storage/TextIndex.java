@@ -0,0 +1,193 @@
+package uni.proj.model.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Indice invertito del corpo delle mail di una mailbox: termine -> PostingList. Ricorda fino a quale
+// sequenza della mailbox e' aggiornato, cosi' dopo il caricamento si recuperano solo le modifiche successive.
+// Non sincronizzato: chi lo usa tiene il lock della mailbox.
+final class TextIndex {
+
+    record Hit(long id, double score) {}
+
+    private static final int MAGIC = 0x46545331; // "FTS1"
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 64;
+
+    private final Map<String, PostingList> postings = new HashMap<>();
+    private final TreeSet<Long> documents = new TreeSet<>();
+    private long sequence;
+    private int unsaved;
+
+    long sequence() {
+        return sequence;
+    }
+
+    void sequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    // modifiche dall'ultimo salvataggio
+    int unsaved() {
+        return unsaved;
+    }
+
+    boolean contains(long id) {
+        return documents.contains(id);
+    }
+
+    void add(long id, String body) {
+        if (!documents.add(id))
+            return;
+        frequencies(body).forEach((term, frequency) -> postings.computeIfAbsent(term, key -> new PostingList()).add(id, frequency));
+        unsaved++;
+    }
+
+    // Il corpo serve a sapere da quali liste togliere il messaggio
+    void remove(long id, String body) {
+        if (!documents.remove(id))
+            return;
+        for (String term : frequencies(body).keySet()) {
+            PostingList list = postings.get(term);
+            if (list != null && list.remove(id) && list.size() == 0)
+                postings.remove(term);
+        }
+        unsaved++;
+    }
+
+    // Messaggi che contengono tutti i termini della query, ordinati per punteggio: per ogni termine
+    // (1 + ln tf) * ln(1 + N / df), moltiplicato per un peso tra 1 e 2 che cresce con l'id (le mail piu' recenti)
+    List<Hit> search(String query) {
+        Set<String> terms = new LinkedHashSet<>(terms(query));
+        if (terms.isEmpty() || documents.isEmpty())
+            return List.of();
+        List<PostingList> lists = new ArrayList<>();
+        for (String term : terms) {
+            PostingList list = postings.get(term);
+            if (list == null)
+                return List.of();
+            lists.add(list);
+        }
+        // si parte dalla lista piu' corta: le altre possono solo togliere candidati
+        lists.sort(Comparator.comparingInt(PostingList::size));
+        int documentCount = documents.size();
+        Map<Long, double[]> scores = new HashMap<>();
+        PostingList first = lists.getFirst();
+        double firstWeight = Math.log(1 + (double) documentCount / first.size());
+        first.forEach((id, frequency) -> scores.put(id, new double[]{(1 + Math.log(frequency)) * firstWeight, 1}));
+        for (int i = 1; i < lists.size(); i++) {
+            PostingList list = lists.get(i);
+            double weight = Math.log(1 + (double) documentCount / list.size());
+            int round = i + 1;
+            list.forEach((id, frequency) -> {
+                double[] score = scores.get(id);
+                if (score != null && score[1] == round - 1) {
+                    score[0] += (1 + Math.log(frequency)) * weight;
+                    score[1] = round;
+                }
+            });
+        }
+        long oldest = documents.first();
+        double span = documents.last() - oldest + 1;
+        List<Hit> hits = new ArrayList<>();
+        scores.forEach((id, score) -> {
+            if (score[1] == lists.size())
+                hits.add(new Hit(id, score[0] * (1 + (id - oldest) / span)));
+        });
+        hits.sort(Comparator.comparingDouble(Hit::score).reversed().thenComparing(Comparator.comparingLong(Hit::id).reversed()));
+        return hits;
+    }
+
+    // Scrittura su file temporaneo e rename: un crash lascia la versione precedente
+    void save(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(sequence);
+            PostingList ids = new PostingList();
+            for (long id : documents)
+                ids.add(id, 1);
+            writeList(out, ids);
+            out.writeInt(postings.size());
+            for (Map.Entry<String, PostingList> entry : postings.entrySet()) {
+                out.writeUTF(entry.getKey());
+                writeList(out, entry.getValue());
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        unsaved = 0;
+    }
+
+    static TextIndex load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("indice non valido: " + file.getFileName());
+            TextIndex index = new TextIndex();
+            index.sequence = in.readLong();
+            readList(in).forEach((id, frequency) -> index.documents.add(id));
+            int terms = in.readInt();
+            for (int i = 0; i < terms; i++) {
+                String term = in.readUTF();
+                index.postings.put(term, readList(in));
+            }
+            return index;
+        }
+    }
+
+    // Termini del testo: minuscole senza accenti, separati da tutto cio' che non e' lettera o cifra
+    static List<String> terms(String text) {
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}+", "")
+                .toLowerCase(Locale.ROOT);
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            boolean inWord = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                if (i - start >= MIN_TERM_LENGTH && i - start <= MAX_TERM_LENGTH)
+                    terms.add(normalized.substring(start, i));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    private static Map<String, Integer> frequencies(String body) {
+        Map<String, Integer> frequencies = new HashMap<>();
+        for (String term : terms(body))
+            frequencies.merge(term, 1, Integer::sum);
+        return frequencies;
+    }
+
+    private static void writeList(DataOutputStream out, PostingList list) throws IOException {
+        byte[] encoded = list.encoded();
+        out.writeInt(list.size());
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    private static PostingList readList(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        byte[] encoded = new byte[in.readInt()];
+        in.readFully(encoded);
+        return PostingList.decode(encoded, size);
+    }
+}
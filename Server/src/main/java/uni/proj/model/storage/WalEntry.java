@@ -0,0 +1,28 @@
+package uni.proj.model.storage;
+
+import uni.proj.model.protocol.MessageType;
+import uni.proj.model.protocol.data.RegisterData;
+import uni.proj.model.protocol.data.SendMailData;
+
+// Modifica registrata nel WAL; i campi non usati dal tipo restano null.
+// Ogni voce contiene tutto il necessario per essere riapplicata dopo un crash.
+public record WalEntry(MessageType type, long messageId, String mailbox, SendMailData mail, String[] receivers, RegisterData register) {
+
+    // nuova mail salvata con messageId e consegnata ai suoi destinatari
+    public static WalEntry sendMail(long messageId, SendMailData mail) {
+        return new WalEntry(MessageType.SEND_MAIL, messageId, null, mail, mail.receiversEmail(), null);
+    }
+
+    // nuova versione del messaggio (destinatari aggiornati) e riferimento ai soli nuovi destinatari
+    public static WalEntry forward(long messageId, SendMailData updatedMail, String[] newReceivers) {
+        return new WalEntry(MessageType.FORWARD, messageId, null, updatedMail, newReceivers, null);
+    }
+
+    public static WalEntry delete(String mailbox, long messageId) {
+        return new WalEntry(MessageType.DELETE, messageId, mailbox, null, null, null);
+    }
+
+    public static WalEntry register(RegisterData data) {
+        return new WalEntry(MessageType.REGISTER, 0, null, null, null, data);
+    }
+}
@@ -0,0 +1,201 @@
+package uni.proj.model.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import uni.proj.Config;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Log delle modifiche scritto prima di toccare archivio e inbox (formato Records, id = numero di sequenza).
+// Una modifica si conferma al client solo dopo awaitDurable: in modalita' GROUP un solo force copre
+// tutte le modifiche arrivate nella finestra di group commit.
+public class WriteAheadLog {
+
+    private final Path file;
+    private final Config.FsyncPolicy policy;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final Gson gson = new Gson();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appendedCondition = lock.newCondition();
+    private final Condition syncedCondition = lock.newCondition();
+    private FileChannel channel;
+    private long end;
+    private long appended;
+    private long synced;
+    private IOException failure;
+    private Thread committer;
+
+    public WriteAheadLog(Path file, Config.FsyncPolicy policy, long windowMicros, int maxBatch) {
+        this.file = file;
+        this.policy = policy;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = maxBatch;
+    }
+
+    // Prima di open: true se l'esecuzione precedente ha lasciato voci da riapplicare
+    public boolean hasEntries() throws IOException {
+        return Files.exists(file) && Files.size(file) > 0;
+    }
+
+    // Passa a replay le voci rimaste dall'esecuzione precedente, in ordine, poi avvia il group commit
+    public void open(Consumer<WalEntry> replay) throws IOException {
+        lock.lock();
+        try {
+            if (channel != null)
+                return;
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            byte[] content = Files.readAllBytes(file);
+            int valid = Records.forEach(content, (sequence, offset, length) -> {
+                try {
+                    replay.accept(gson.fromJson(Records.payload(content, offset, length), WalEntry.class));
+                } catch (JsonParseException e) {
+                    // voce illeggibile: si prosegue con le successive
+                }
+            });
+            if (valid < content.length)
+                channel.truncate(valid);
+            end = valid;
+        } finally {
+            lock.unlock();
+        }
+        if (policy == Config.FsyncPolicy.GROUP) {
+            committer = new Thread(this::commitLoop, "wal-commit");
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    // Scrive la voce (senza forzarla su disco) e ne restituisce il numero di sequenza
+    public long append(WalEntry entry) throws IOException {
+        ByteBuffer buffer;
+        lock.lock();
+        try {
+            if (failure != null)
+                throw failure;
+            long sequence = appended + 1;
+            buffer = ByteBuffer.wrap(Records.frame(sequence, gson.toJson(entry)));
+            int length = buffer.remaining();
+            while (buffer.hasRemaining())
+                channel.write(buffer, end + buffer.position());
+            end += length;
+            appended = sequence;
+            appendedCondition.signal();
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Ritorna quando la voce e tutte le precedenti sono su disco secondo la politica configurata
+    public void awaitDurable(long sequence) throws IOException {
+        switch (policy) {
+            case NEVER -> {}
+            case ALWAYS -> {
+                long target;
+                lock.lock();
+                try {
+                    if (synced >= sequence)
+                        return;
+                    target = appended;
+                } finally {
+                    lock.unlock();
+                }
+                channel.force(false);
+                markSynced(target);
+            }
+            case GROUP -> {
+                lock.lock();
+                try {
+                    while (synced < sequence && failure == null)
+                        syncedCondition.await();
+                    if (failure != null)
+                        throw failure;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("attesa del group commit interrotta");
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    public long size() {
+        lock.lock();
+        try {
+            return end;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Checkpoint: il chiamante ha gia' reso durevoli archivio e inbox, le voci non servono piu'
+    public void reset() throws IOException {
+        lock.lock();
+        try {
+            channel.truncate(0);
+            channel.force(true);
+            end = 0;
+            synced = appended;
+            syncedCondition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            long target;
+            lock.lock();
+            try {
+                while (appended == synced)
+                    appendedCondition.await();
+                // la finestra si chiude allo scadere del tempo o quando il gruppo e' pieno
+                long remaining = windowNanos;
+                while (remaining > 0 && appended - synced < maxBatch)
+                    remaining = appendedCondition.awaitNanos(remaining);
+                target = appended;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                // dopo un force fallito non si puo' piu' garantire nulla: tutte le attese falliscono
+                lock.lock();
+                try {
+                    failure = e;
+                    syncedCondition.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            markSynced(target);
+        }
+    }
+
+    private void markSynced(long target) {
+        lock.lock();
+        try {
+            synced = Math.max(synced, target);
+            syncedCondition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
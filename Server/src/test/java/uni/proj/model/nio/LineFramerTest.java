@@ -0,0 +1,61 @@
+package uni.proj.model.nio;
+
+import org.junit.jupiter.api.Test;
+import uni.proj.model.protocol.BinaryCodec;
+import uni.proj.model.protocol.FrameDeflater;
+import uni.proj.model.protocol.MixedStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LineFramerTest {
+
+    // I byte arrivano in blocchi di chunk byte, come letture successive dal canale
+    private static List<String> feed(byte[] bytes, int chunk) throws IOException {
+        LineFramer framer = new LineFramer();
+        List<String> frames = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i += chunk) {
+            ByteBuffer input = ByteBuffer.wrap(bytes, i, Math.min(chunk, bytes.length - i));
+            framer.feed(input, line -> frames.add(MixedStream.line(line)), payload -> frames.add(MixedStream.frame(payload)));
+            assertFalse(input.hasRemaining());
+        }
+        return frames;
+    }
+
+    @Test
+    void framesMixedInputOneByteAtATime() throws IOException {
+        MixedStream stream = MixedStream.sample();
+        assertEquals(stream.expected(), feed(stream.bytes(), 1));
+    }
+
+    @Test
+    void framesMixedInputInAnyChunkSize() throws IOException {
+        MixedStream stream = MixedStream.sample();
+        byte[] bytes = stream.bytes();
+        for (int chunk : new int[]{2, 3, 7, 64, 1000, bytes.length})
+            assertEquals(stream.expected(), feed(bytes, chunk), "blocchi di " + chunk + " byte");
+    }
+
+    @Test
+    void incompleteInputProducesNothingYet() throws IOException {
+        MixedStream stream = MixedStream.sample();
+        byte[] bytes = stream.bytes();
+        List<String> frames = feed(Arrays.copyOf(bytes, bytes.length - 2), 1);
+        assertEquals(stream.expected().subList(0, stream.expected().size() - 1), frames);
+    }
+
+    @Test
+    void oversizedFrameLengthIsRejected() {
+        int tooLong = BinaryCodec.MAX_FRAME_LENGTH + 1;
+        byte[] binary = {BinaryCodec.MARKER, (byte) (tooLong >>> 24), (byte) (tooLong >>> 16), (byte) (tooLong >>> 8), (byte) tooLong};
+        assertThrows(IOException.class, () -> feed(binary, 1));
+
+        byte[] negative = {FrameDeflater.MARKER, (byte) 0x80, 0, 0, 0};
+        assertThrows(IOException.class, () -> feed(negative, 1));
+    }
+}
@@ -0,0 +1,85 @@
+package uni.proj.model.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+// Stream che alterna righe di testo, frame binari e frame compressi come una connessione reale dopo l'handshake,
+// con l'elenco dei frame che chi legge deve restituire: "L:" + riga oppure "B:" + corpo del frame in esadecimale
+public final class MixedStream {
+
+    private final ProtocolHandler handler = new ProtocolHandler();
+    // uno solo per lo stream, come su una connessione: i frame compressi dipendono dai precedenti
+    private final FrameDeflater deflater = new FrameDeflater();
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final List<String> expected = new ArrayList<>();
+
+    public static MixedStream sample() {
+        MixedStream stream = new MixedStream();
+        List<ProtocolMessage<?>> samples = ProtocolSamples.all();
+        stream.line(Handshake.PREFIX + " " + Handshake.BINARY + " " + Handshake.DEFLATE, "\n");
+        stream.json(samples.get(0), "\r\n");
+        for (ProtocolMessage<?> message : samples)
+            stream.binary(message);
+        stream.json(samples.get(8), "\n");
+        stream.line("", "\n");
+        // piu' messaggi in ogni frame compresso, misti
+        for (int i = 0; i + 3 <= samples.size(); i += 3)
+            stream.deflated(samples.subList(i, i + 3));
+        stream.binary(samples.get(samples.size() - 1));
+        stream.json(samples.get(1), "\n");
+        return stream;
+    }
+
+    public byte[] bytes() {
+        return bytes.toByteArray();
+    }
+
+    public List<String> expected() {
+        return expected;
+    }
+
+    public static String line(String line) {
+        return "L:" + line;
+    }
+
+    public static String frame(byte[] payload) {
+        return "B:" + HexFormat.of().formatHex(payload);
+    }
+
+    private void line(String line, String end) {
+        bytes.writeBytes((line + end).getBytes(StandardCharsets.UTF_8));
+        expected.add(line(line));
+    }
+
+    private void json(ProtocolMessage<?> message, String end) {
+        line(handler.encode(message, handler.getDataClassForType(message.type())), end);
+    }
+
+    private void binary(ProtocolMessage<?> message) {
+        byte[] frame = handler.encodeBinary(message);
+        bytes.writeBytes(frame);
+        expected.add(frame(Arrays.copyOfRange(frame, BinaryCodec.HEADER_BYTES, frame.length)));
+    }
+
+    // un frame compresso con i messaggi alternati tra riga JSON e frame binario
+    private void deflated(List<ProtocolMessage<?>> messages) {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (int i = 0; i < messages.size(); i++) {
+            ProtocolMessage<?> message = messages.get(i);
+            if (i % 2 == 0) {
+                String line = handler.encode(message, handler.getDataClassForType(message.type()));
+                content.writeBytes((line + "\n").getBytes(StandardCharsets.UTF_8));
+                expected.add(line(line));
+            } else {
+                byte[] frame = handler.encodeBinary(message);
+                content.writeBytes(frame);
+                expected.add(frame(Arrays.copyOfRange(frame, BinaryCodec.HEADER_BYTES, frame.length)));
+            }
+        }
+        bytes.writeBytes(deflater.compress(content.toByteArray()));
+    }
+}
@@ -0,0 +1,103 @@
+package uni.proj.model.protocol;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import uni.proj.model.protocol.data.MailBatchData;
+import uni.proj.model.protocol.data.SendMailData;
+
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.ToIntFunction;
+
+// Tempi di codifica + decodifica dei messaggi piu' frequenti, per confrontare le implementazioni del protocollo.
+// Non e' un test: gradle :Server:benchmark. I numeri dipendono dalla macchina, contano i rapporti tra le righe
+@Tag("benchmark")
+class ProtocolBenchmark {
+
+    private static final int WARMUP_MILLIS = 2000;
+    private static final int MEASURE_MILLIS = 3000;
+
+    private final ProtocolHandler handler = new ProtocolHandler();
+    // risultati consumati, perche' il JIT non elimini il lavoro misurato
+    private long sink;
+
+    private static final ProtocolMessage<SendMailData> SEND_MAIL = new ProtocolMessage<>(MessageType.SEND_MAIL, ProtocolSamples.MAIL);
+    private static final ProtocolMessage<MailBatchData> MAIL_BATCH = new ProtocolMessage<>(MessageType.MAIL_BATCH, batch(50), 12);
+
+    private static MailBatchData batch(int size) {
+        SendMailData[] mails = new SendMailData[size];
+        long[] ids = new long[size];
+        for (int i = 0; i < size; i++) {
+            mails[i] = new SendMailData(ProtocolSamples.MAIL.senderEmail(), ProtocolSamples.MAIL.title() + " " + i,
+                    ProtocolSamples.MAIL.body(), ProtocolSamples.MAIL.receiversEmail());
+            ids[i] = 1000 + i;
+        }
+        return new MailBatchData(mails, ids);
+    }
+
+    @Test
+    void jsonVersusBinary() {
+        for (ProtocolMessage<?> message : Arrays.asList(SEND_MAIL, MAIL_BATCH)) {
+            Class<?> dataClass = handler.getDataClassForType(message.type());
+            String line = handler.encode(message, dataClass);
+            byte[] frame = handler.encodeBinary(message);
+            System.out.println(message.type() + ": JSON " + (line.getBytes(StandardCharsets.UTF_8).length + 1)
+                    + " B, binario " + frame.length + " B");
+
+            measure(message.type() + " JSON encode+decode", m -> {
+                String json = handler.encode(m, dataClass);
+                return handler.decode(json).hashCode() + json.length();
+            }, message);
+            measure(message.type() + " binario encode+decode", m -> {
+                byte[] bytes = handler.encodeBinary(m);
+                return handler.decodeBinary(Arrays.copyOfRange(bytes, BinaryCodec.HEADER_BYTES, bytes.length)).hashCode();
+            }, message);
+        }
+    }
+
+    // ProtocolHandler in streaming con gli adapter in cache, contro gson.toJson/fromJson con un TypeToken per
+    // messaggio e la lettura del JsonObject intermedio
+    @Test
+    void streamingVersusGsonTree() {
+        Gson gson = new Gson();
+        for (ProtocolMessage<?> message : Arrays.asList(SEND_MAIL, MAIL_BATCH)) {
+            Class<?> dataClass = handler.getDataClassForType(message.type());
+            measure(message.type() + " streaming encode+decode", m -> {
+                String json = handler.encode(m, dataClass);
+                return handler.decode(json).hashCode() + json.length();
+            }, message);
+            measure(message.type() + " gson albero encode+decode", m -> {
+                Type type = TypeToken.getParameterized(ProtocolMessage.class, dataClass).getType();
+                String json = gson.toJson(m, type);
+                JsonObject object = gson.fromJson(json, JsonObject.class);
+                MessageType messageType = gson.fromJson(object.get("type"), MessageType.class);
+                Object data = gson.fromJson(object.get("data"), handler.getDataClassForType(messageType));
+                return data.hashCode() + json.length();
+            }, message);
+        }
+    }
+
+    // Ripete operation per un tempo fisso dopo il riscaldamento e stampa il tempo medio per operazione
+    private <T> void measure(String name, ToIntFunction<T> operation, T input) {
+        run(operation, input, WARMUP_MILLIS);
+        long start = System.nanoTime();
+        long count = run(operation, input, MEASURE_MILLIS);
+        double nanos = (double) (System.nanoTime() - start) / count;
+        System.out.printf("%-40s %10.1f ns/op%n", name, nanos);
+    }
+
+    private <T> long run(ToIntFunction<T> operation, T input, long millis) {
+        long end = System.nanoTime() + millis * 1_000_000;
+        long count = 0;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 100; i++)
+                sink += operation.applyAsInt(input);
+            count += 100;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,87 @@
+package uni.proj.model.protocol;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.junit.jupiter.api.Test;
+import uni.proj.model.protocol.data.MailBatchData;
+import uni.proj.model.protocol.data.SendMailData;
+
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// encode() scrive in streaming con gli adapter in cache: la riga deve restare quella di gson.toJson sul
+// ProtocolMessage, a parte requestId omesso quando e' 0
+class ProtocolHandlerGsonTest {
+
+    private final ProtocolHandler handler = new ProtocolHandler();
+    private final Gson gson = new Gson();
+
+    private String toJson(ProtocolMessage<?> message) {
+        Type type = TypeToken.getParameterized(ProtocolMessage.class, handler.getDataClassForType(message.type())).getType();
+        String json = gson.toJson(message, type);
+        if (message.requestId() == 0) {
+            assertTrue(json.endsWith(",\"requestId\":0}"), json);
+            json = json.substring(0, json.length() - ",\"requestId\":0}".length()) + "}";
+        }
+        return json;
+    }
+
+    private String encode(ProtocolMessage<?> message) {
+        return handler.encode(message, handler.getDataClassForType(message.type()));
+    }
+
+    @Test
+    void encodeMatchesGsonForEveryDataType() {
+        for (ProtocolMessage<?> message : ProtocolSamples.all())
+            assertEquals(toJson(message), encode(message), message.type().toString());
+    }
+
+    // anche la riga di Gson, con requestId 0 esplicito, si legge come la propria
+    @Test
+    void decodeReadsGsonOutput() {
+        for (ProtocolMessage<?> message : ProtocolSamples.all()) {
+            Type type = TypeToken.getParameterized(ProtocolMessage.class, handler.getDataClassForType(message.type())).getType();
+            ProtocolMessage<?> decoded = handler.decode(gson.toJson(message, type));
+            assertEquals(message.type(), decoded.type());
+            assertEquals(message.requestId(), decoded.requestId());
+            assertEquals(encode(message), encode(decoded));
+        }
+    }
+
+    @Test
+    void decodeAcceptsDataBeforeType() {
+        ProtocolMessage<?> decoded = handler.decode("{\"requestId\":3,\"data\":{\"email\":\"a@unimail.it\"},\"type\":\"LOGIN\"}");
+        assertEquals(MessageType.LOGIN, decoded.type());
+        assertEquals(3, decoded.requestId());
+        assertEquals("{\"type\":\"LOGIN\",\"data\":{\"email\":\"a@unimail.it\"},\"requestId\":3}", encode(decoded));
+    }
+
+    @Test
+    void sendMailDataIsTheGsonData() {
+        for (SendMailData mail : List.of(ProtocolSamples.MAIL, ProtocolSamples.EMPTY_MAIL, ProtocolSamples.NULL_MAIL)) {
+            ByteBuffer line = ByteBuffer.wrap((encode(new ProtocolMessage<>(MessageType.SEND_MAIL, mail)) + "\n").getBytes(StandardCharsets.UTF_8));
+            assertEquals(gson.toJson(mail), StandardCharsets.UTF_8.decode(handler.sendMailData(line)).toString());
+        }
+        ByteBuffer withRequestId = ByteBuffer.wrap((encode(new ProtocolMessage<>(MessageType.SEND_MAIL, ProtocolSamples.MAIL, 1)) + "\n").getBytes(StandardCharsets.UTF_8));
+        assertThrows(IllegalArgumentException.class, () -> handler.sendMailData(withRequestId));
+    }
+
+    @Test
+    void encodeMailBatchMatchesEncode() {
+        for (ProtocolMessage<?> message : ProtocolSamples.all()) {
+            if (message.type() != MessageType.MAIL_BATCH || ((MailBatchData) message.data()).mails() == null)
+                continue;
+            MailBatchData batch = (MailBatchData) message.data();
+            List<ByteBuffer> mails = new ArrayList<>();
+            for (SendMailData mail : batch.mails())
+                mails.add(ByteBuffer.wrap(gson.toJson(mail).getBytes(StandardCharsets.UTF_8)));
+            ByteBuffer line = handler.encodeMailBatch(mails, batch.ids(), message.requestId());
+            assertEquals(encode(message) + "\n", StandardCharsets.UTF_8.decode(line).toString());
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package uni.proj.model.protocol;
+
+import com.google.gson.JsonSyntaxException;
+import org.junit.jupiter.api.Test;
+import uni.proj.model.protocol.data.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProtocolRoundTripTest {
+
+    private final ProtocolHandler handler = new ProtocolHandler();
+
+    private String json(ProtocolMessage<?> message) {
+        return handler.encode(message, handler.getDataClassForType(message.type()));
+    }
+
+    private static byte[] payload(byte[] frame) {
+        return Arrays.copyOfRange(frame, BinaryCodec.HEADER_BYTES, frame.length);
+    }
+
+    @Test
+    void samplesCoverEveryMessageType() {
+        Set<MessageType> covered = EnumSet.noneOf(MessageType.class);
+        ProtocolSamples.all().forEach(message -> covered.add(message.type()));
+        assertEquals(EnumSet.allOf(MessageType.class), covered);
+    }
+
+    // JSON -> messaggio -> binario -> messaggio -> JSON: i dati si confrontano sulla loro riga JSON, che
+    // confronta anche il contenuto degli array
+    @Test
+    void jsonAndBinaryRoundTrip() {
+        for (ProtocolMessage<?> message : ProtocolSamples.all()) {
+            String line = json(message);
+            assertFalse(line.contains("\n"), line);
+
+            ProtocolMessage<?> fromJson = handler.decode(line);
+            assertEquals(message.type(), fromJson.type());
+            assertEquals(message.requestId(), fromJson.requestId());
+            assertEquals(line, json(fromJson));
+
+            byte[] frame = handler.encodeBinary(fromJson);
+            assertEquals(BinaryCodec.MARKER, frame[0]);
+            int length = ((frame[1] & 0xFF) << 24) | ((frame[2] & 0xFF) << 16) | ((frame[3] & 0xFF) << 8) | (frame[4] & 0xFF);
+            assertEquals(frame.length - BinaryCodec.HEADER_BYTES, length);
+
+            ProtocolMessage<?> fromBinary = handler.decodeBinary(payload(frame));
+            assertEquals(message.type(), fromBinary.type());
+            assertEquals(message.requestId(), fromBinary.requestId());
+            assertEquals(line, json(fromBinary));
+        }
+    }
+
+    @Test
+    void nullsAndEmptyArraysSurviveBinary() {
+        SearchResultData empty = (SearchResultData) handler.decodeBinary(payload(handler.encodeBinary(
+                new ProtocolMessage<>(MessageType.SEARCH_RESULT, new SearchResultData(new SendMailData[0], new long[0], false))))).data();
+        assertArrayEquals(new SendMailData[0], empty.mails());
+        assertArrayEquals(new long[0], empty.deliveredAt());
+
+        SearchResultData nulls = (SearchResultData) handler.decodeBinary(payload(handler.encodeBinary(
+                new ProtocolMessage<>(MessageType.SEARCH_RESULT, new SearchResultData(null, null, false))))).data();
+        assertNull(nulls.mails());
+        assertNull(nulls.deliveredAt());
+
+        SendMailData mail = (SendMailData) handler.decodeBinary(payload(handler.encodeBinary(
+                new ProtocolMessage<>(MessageType.SEND_MAIL, ProtocolSamples.NULL_MAIL)))).data();
+        assertNull(mail.title());
+        assertNull(mail.receiversEmail());
+        assertEquals("\n", mail.body());
+
+        SearchData search = (SearchData) handler.decodeBinary(payload(handler.encodeBinary(
+                new ProtocolMessage<>(MessageType.SEARCH, new SearchData(null, "", null, null, null, 0L, null))))).data();
+        assertNull(search.email());
+        assertEquals("", search.sender());
+        assertNull(search.from());
+        assertEquals(0L, search.to());
+    }
+
+    @Test
+    void embeddedNewlinesStayInsideOneFrame() {
+        ProtocolMessage<SendMailData> message = new ProtocolMessage<>(MessageType.SEND_MAIL, ProtocolSamples.MAIL);
+        assertEquals(ProtocolSamples.MAIL.body(), ((SendMailData) handler.decode(json(message)).data()).body());
+        assertEquals(ProtocolSamples.MAIL.body(), ((SendMailData) handler.decodeBinary(payload(handler.encodeBinary(message))).data()).body());
+    }
+
+    @Test
+    void truncatedBinaryFramesAreRejected() {
+        for (ProtocolMessage<?> message : ProtocolSamples.all()) {
+            byte[] payload = payload(handler.encodeBinary(message));
+            for (int length = 0; length < payload.length; length++) {
+                byte[] truncated = Arrays.copyOf(payload, length);
+                assertThrows(IllegalArgumentException.class, () -> handler.decodeBinary(truncated),
+                        message.type() + " troncato a " + length + " byte");
+            }
+        }
+    }
+
+    @Test
+    void extraBytesInBinaryFrameAreRejected() {
+        byte[] payload = payload(handler.encodeBinary(new ProtocolMessage<>(MessageType.LOGIN, new LoginData("a@unimail.it"))));
+        byte[] longer = Arrays.copyOf(payload, payload.length + 1);
+        assertThrows(IllegalArgumentException.class, () -> handler.decodeBinary(longer));
+    }
+
+    @Test
+    void truncatedJsonLinesAreRejected() {
+        for (ProtocolMessage<?> message : ProtocolSamples.all()) {
+            String line = json(message);
+            for (int length = 0; length < line.length(); length++) {
+                String truncated = line.substring(0, length);
+                assertThrows(JsonSyntaxException.class, () -> handler.decode(truncated),
+                        message.type() + " troncato a " + length + " caratteri");
+            }
+        }
+    }
+
+    // Lunghezze di stringhe e array oltre la fine del frame, o negative
+    @Test
+    void oversizedFieldLengthsAreRejected() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MessageType.LOGIN.ordinal());
+        out.write(0);                       // requestId
+        writeVarint(out, 1_000_001);        // stringa di 1.000.000 byte
+        out.writeBytes("abc".getBytes());
+        assertThrows(IllegalArgumentException.class, () -> handler.decodeBinary(out.toByteArray()));
+
+        out.reset();
+        out.write(MessageType.FORWARD.ordinal());
+        out.write(0);
+        out.write(0);                       // mail null
+        writeVarint(out, Integer.MAX_VALUE); // array di destinatari
+        assertThrows(IllegalArgumentException.class, () -> handler.decodeBinary(out.toByteArray()));
+
+        out.reset();
+        out.write(MessageType.LOGIN.ordinal());
+        out.write(0);
+        writeVarint(out, -2L);              // lunghezza negativa
+        out.writeBytes("abc".getBytes());
+        assertThrows(IllegalArgumentException.class, () -> handler.decodeBinary(out.toByteArray()));
+
+        out.reset();
+        writeVarint(out, MessageType.values().length); // tipo sconosciuto
+        out.write(0);
+        assertThrows(IllegalArgumentException.class, () -> handler.decodeBinary(out.toByteArray()));
+    }
+
+    @Test
+    void oversizedMessagesAreNotEncoded() {
+        String body = "x".repeat(BinaryCodec.MAX_FRAME_LENGTH);
+        ProtocolMessage<ChatData> message = new ProtocolMessage<>(MessageType.CHAT, new ChatData(body));
+        assertThrows(IllegalArgumentException.class, () -> handler.encodeBinary(message));
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
@@ -0,0 +1,58 @@
+package uni.proj.model.protocol;
+
+import uni.proj.model.protocol.data.*;
+
+import java.util.List;
+
+// Messaggi di esempio per i test e i benchmark del protocollo: almeno uno per ogni MessageType, con campi null,
+// array vuoti, a capo nel testo e caratteri fuori dall'ASCII
+public final class ProtocolSamples {
+
+    public static final SendMailData MAIL = new SendMailData("mario.rossi@unimail.it", "Riunione di lunedi'",
+            "Ciao a tutti,\nla riunione e' spostata alle 15:00.\r\nPortate i verbali (anche quelli \"vecchi\").\n\nMario",
+            new String[]{"anna.bianchi@unimail.it", "luca.verdi@unimail.it"});
+
+    public static final SendMailData EMPTY_MAIL = new SendMailData("", "", "", new String[0]);
+
+    public static final SendMailData NULL_MAIL = new SendMailData("a@unimail.it", null, "\n", null);
+
+    private ProtocolSamples() {
+    }
+
+    public static List<ProtocolMessage<?>> all() {
+        return List.of(
+                new ProtocolMessage<>(MessageType.LOGIN, new LoginData("mario.rossi@unimail.it"), 1),
+                new ProtocolMessage<>(MessageType.LOGIN, new LoginData(null), 2),
+                new ProtocolMessage<>(MessageType.LOGOUT, new LogoutData("ciao\n")),
+                new ProtocolMessage<>(MessageType.CHAT, new ChatData("riga 1\nriga 2 <b>&</b> è 📧")),
+                new ProtocolMessage<>(MessageType.CHAT, new ChatData(null)),
+                new ProtocolMessage<>(MessageType.ERROR, new ErrorData(MessageType.FORWARD, "destinatario non trovato"), 7),
+                new ProtocolMessage<>(MessageType.ERROR, new ErrorData(null, null), -1),
+                new ProtocolMessage<>(MessageType.REGISTER, new RegisterData("nuovo@unimail.it"), Long.MAX_VALUE),
+                new ProtocolMessage<>(MessageType.SEND_MAIL, MAIL),
+                new ProtocolMessage<>(MessageType.SEND_MAIL, EMPTY_MAIL, 3),
+                new ProtocolMessage<>(MessageType.SEND_MAIL, NULL_MAIL),
+                new ProtocolMessage<>(MessageType.RESPONSE, new ResponseData(MessageType.DELETE, "mail eliminata correttamente"), 4),
+                new ProtocolMessage<>(MessageType.GET_INBOX, new GetInboxData("mario.rossi@unimail.it", null, 50), 5),
+                new ProtocolMessage<>(MessageType.GET_INBOX, new GetInboxData("mario.rossi@unimail.it", "12:345", 0), 6),
+                new ProtocolMessage<>(MessageType.FORWARD, new ForwardData(MAIL, new String[]{"carla@unimail.it"}), 8),
+                new ProtocolMessage<>(MessageType.FORWARD, new ForwardData(null, new String[0])),
+                new ProtocolMessage<>(MessageType.DELETE, new DeleteData(MAIL), 9),
+                new ProtocolMessage<>(MessageType.DELETE, new DeleteData(null, 42)),
+                new ProtocolMessage<>(MessageType.INBOX_PAGE, new InboxPageData("7:1024", 50, 123456789L), 10),
+                new ProtocolMessage<>(MessageType.INBOX_PAGE, new InboxPageData(null, 0, 0), 11),
+                new ProtocolMessage<>(MessageType.GET_CHANGES, new GetChangesData("mario.rossi@unimail.it", 99), 12),
+                new ProtocolMessage<>(MessageType.CHANGES, new ChangesData(100, 3, true), 12),
+                new ProtocolMessage<>(MessageType.CHANGES, new ChangesData(0, 0, false), 13),
+                new ProtocolMessage<>(MessageType.SEARCH, new SearchData("mario.rossi@unimail.it", "anna", null, "riunione", 0L, Long.MIN_VALUE, "verbali"), 14),
+                new ProtocolMessage<>(MessageType.SEARCH, new SearchData(null, null, null, null, null, null, null), 15),
+                new ProtocolMessage<>(MessageType.SEARCH_RESULT, new SearchResultData(new SendMailData[]{MAIL, null, EMPTY_MAIL}, new long[]{1_700_000_000_000L, 0, -1}, true), 14),
+                new ProtocolMessage<>(MessageType.SEARCH_RESULT, new SearchResultData(new SendMailData[0], new long[0], false), 15),
+                new ProtocolMessage<>(MessageType.SEARCH_RESULT, new SearchResultData(null, null, false), 16),
+                new ProtocolMessage<>(MessageType.MAIL_BATCH, new MailBatchData(new SendMailData[]{MAIL, NULL_MAIL, EMPTY_MAIL}, new long[]{1, 2, 3}), 5),
+                new ProtocolMessage<>(MessageType.MAIL_BATCH, new MailBatchData(new SendMailData[]{MAIL}, new long[]{-7})),
+                new ProtocolMessage<>(MessageType.MAIL_BATCH, new MailBatchData(new SendMailData[0], new long[0]), 17),
+                new ProtocolMessage<>(MessageType.MAIL_BATCH, new MailBatchData(null, null), 18)
+        );
+    }
+}
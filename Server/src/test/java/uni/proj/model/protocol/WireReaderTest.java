@@ -0,0 +1,77 @@
+package uni.proj.model.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WireReaderTest {
+
+    // Restituisce al massimo un byte per lettura, come una connessione lenta
+    private static final class OneByteInputStream extends InputStream {
+        private final ByteArrayInputStream in;
+
+        OneByteInputStream(byte[] bytes) {
+            in = new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return len == 0 ? 0 : in.read(b, off, 1);
+        }
+    }
+
+    private static List<String> readAll(InputStream in) throws IOException {
+        WireReader reader = new WireReader(in);
+        List<String> frames = new ArrayList<>();
+        WireReader.Frame frame;
+        while ((frame = reader.next()) != null)
+            frames.add(frame.line() != null ? MixedStream.line(frame.line()) : MixedStream.frame(frame.binary()));
+        return frames;
+    }
+
+    @Test
+    void readsMixedFramesOneByteAtATime() throws IOException {
+        MixedStream stream = MixedStream.sample();
+        assertEquals(stream.expected(), readAll(new OneByteInputStream(stream.bytes())));
+    }
+
+    @Test
+    void readsMixedFramesInOneRead() throws IOException {
+        MixedStream stream = MixedStream.sample();
+        assertEquals(stream.expected(), readAll(new ByteArrayInputStream(stream.bytes())));
+    }
+
+    @Test
+    void truncatedStreamIsAnError() {
+        byte[] bytes = MixedStream.sample().bytes();
+        // a meta' dell'ultima riga JSON e a meta' di un frame binario
+        byte[] inLine = Arrays.copyOf(bytes, bytes.length - 2);
+        assertThrows(EOFException.class, () -> readAll(new OneByteInputStream(inLine)));
+
+        byte[] inFrame = {BinaryCodec.MARKER, 0, 0, 0, 10, 1, 2, 3};
+        assertThrows(EOFException.class, () -> readAll(new OneByteInputStream(inFrame)));
+    }
+
+    @Test
+    void oversizedFrameLengthIsRejected() {
+        int tooLong = BinaryCodec.MAX_FRAME_LENGTH + 1;
+        byte[] binary = {BinaryCodec.MARKER, (byte) (tooLong >>> 24), (byte) (tooLong >>> 16), (byte) (tooLong >>> 8), (byte) tooLong};
+        assertThrows(IOException.class, () -> readAll(new OneByteInputStream(binary)));
+
+        byte[] negative = {FrameDeflater.MARKER, (byte) 0x80, 0, 0, 0};
+        assertThrows(IOException.class, () -> readAll(new OneByteInputStream(negative)));
+    }
+}